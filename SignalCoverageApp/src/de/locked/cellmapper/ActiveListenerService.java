@@ -5,25 +5,44 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.location.Location;
+import android.location.LocationListener;
 import android.location.LocationManager;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.preference.PreferenceManager;
-import android.telephony.PhoneStateListener;
-import android.telephony.SignalStrength;
-import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import de.locked.cellmapper.model.DataListener;
+import de.locked.cellmapper.model.DbHandler;
+import de.locked.cellmapper.model.DutyCycle;
+import de.locked.cellmapper.model.ListenerCycle;
 import de.locked.cellmapper.model.Preferences;
+import de.locked.cellmapper.model.SignalTrigger;
 
+/**
+ * Switches the GPS on and off in cycles, see {@link ListenerCycle}. Everything
+ * runs on the main thread, the cycle is driven by one timer message.
+ */
 public class ActiveListenerService extends Service {
     private static final String LOG_TAG = ActiveListenerService.class.getName();
-    private static final int START_LISTENING = 0;
-    private static final int MIN_TIME = 250;
-    private final SignalChangeTrigger trigger = new SignalChangeTrigger();
+    private static final int TIMER = 0;
+    private static final int TRIGGER = 1;
+    // allows 10 fixes per second on drive tests
+    private static final int MIN_TIME = 100;
+    private final SignalChangeListener signalListener = new SignalChangeListener();
+    // limits the requests of the trigger
+    private final SignalTrigger signalTrigger = new SignalTrigger();
+    private final MotionListener motion = new MotionListener();
+    private final FixListener fixes = new FixListener();
+    // adapts the times below to the observed movement
+    private final DutyCycle dutyCycle = new DutyCycle();
     // get an update every this many meters (min distance)
     private long minLocationDistance = 50; // m
     // get an update every this many milliseconds
@@ -33,11 +52,12 @@ public class ActiveListenerService extends Service {
     private long sleepBetweenMeasures = 30000; // ms
     private long updateDuration = 30000; // ms
     private LocationManager locationManager;
-    private TelephonyManager telephonyManager;
-    private volatile boolean reschedule;
+    private SensorManager sensorManager;
+    private boolean running;
     private DataListener dataListener;
     private Handler handler;
-    private Thread thread;
+    private ListenerCycle cycle;
+    private OnSharedPreferenceChangeListener preferenceListener;
     private boolean updateOnSignalChange;
 
     @Override
@@ -46,18 +66,9 @@ public class ActiveListenerService extends Service {
         Log.i(LOG_TAG, "start service");
 
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-        telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
-        dataListener = new DataListener(this);
-
-        // restart on preference change
-        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(new OnSharedPreferenceChangeListener() {
-            @Override
-            public void onSharedPreferenceChanged(SharedPreferences p, String key) {
-                loadPreferences();
-                stopListening();
-                startListening();
-            }
-        });
+        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        dataListener = DataListener.get(this);
+        loadPreferences();
 
         handler = new Handler() {
 
@@ -65,97 +76,70 @@ public class ActiveListenerService extends Service {
             public void handleMessage(Message msg) {
                 super.handleMessage(msg);
                 switch (msg.what) {
-                    case START_LISTENING:
-                        startListening();
+                    case TIMER:
+                        cycle.onTimer();
+                        break;
+
+                    case TRIGGER:
+                        // the GPS may have been switched on meanwhile
+                        if (cycle.wake()) {
+                            signalTrigger.fire();
+                        } else {
+                            signalTrigger.cancel();
+                        }
+                        Log.d(LOG_TAG, "signal trigger, " + signalTrigger.getStats());
                         break;
 
                     default:
                         Log.e(LOG_TAG, "this was unexpected better stop");
-                        stopListening();
+                        cycle.stop();
                         break;
                 }
             }
         };
-    }
-
-    private void stopListening() {
-        Log.d(LOG_TAG, "stopListening()");
-        removeListener();
-        if (thread != null && thread.isAlive()) {
-            Log.d(LOG_TAG, "interrupting thread");
-            thread.interrupt();
-        }
-        if (reschedule) {
-            Log.d(LOG_TAG, "reschedule to start listening in " + sleepBetweenMeasures + "ms");
-            handler.sendEmptyMessageDelayed(START_LISTENING, sleepBetweenMeasures);
-        }
-    }
-
-    private void startListening() {
-        if (!reschedule) {
-            Log.d(LOG_TAG, "reschedule = false. do nothing.");
-            return;
-        }
-        if (thread != null && thread.isAlive()) {
-            Log.w(LOG_TAG, "Thread still active. do nothing. - This shouldn't happen!");
-            return;
-        }
-
-        addListener();
-
-        Log.d(LOG_TAG, "starting location polling thread");
-        thread = new Thread() {
-            private final String LOG = LOG_TAG + "#Thread";
-            private final long maxLocationAge = 5 * 60 * 1000; // 5min
-            private final long startTime = System.currentTimeMillis();
 
+        cycle = new ListenerCycle(dutyCycle, new ListenerCycle.Timer() {
             @Override
-            public void run() {
-                try {
-                    long threadAge = 0;
-                    Location lastLocation = null;
-                    while (!isInterrupted() && reschedule && threadAge < updateDuration) {
-                        locationManager.requestSingleUpdate(LocationManager.GPS_PROVIDER, dataListener, getMainLooper());
-
-                        // handle polling
-                        Location location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-                        if (location != null && !sameLocation(location, lastLocation)) {
-                            long age = System.currentTimeMillis() - location.getTime();
-                            float dist = dist(lastLocation, location);
-                            Log.d(LOG, "location age: " + (age / 1000) + "s // dist: " + dist + "m // accuracy " + location.getAccuracy());
-                            if (age < maxLocationAge && dist > minLocationDistance) {
-                                dataListener.onLocationChanged(location);
-                                lastLocation = location;
-                            }
-                        }
+            public long now() {
+                return System.currentTimeMillis();
+            }
 
-                        sleep(minLocationTime);
-                        threadAge = System.currentTimeMillis() - startTime;
-                    }
+            @Override
+            public void schedule(long delay) {
+                handler.removeMessages(TIMER);
+                handler.sendEmptyMessageDelayed(TIMER, delay);
+            }
 
-                    Log.d(LOG, "thread age " + threadAge + "ms reached - stopping self and reschedule in " + sleepBetweenMeasures + "ms");
-                    handler.sendEmptyMessageDelayed(START_LISTENING, sleepBetweenMeasures);
-                } catch (InterruptedException e) {
-                    Log.i(LOG, "thread interrupted");
-                } finally {
-                    removeListener();
-                }
+            @Override
+            public void cancel() {
+                handler.removeMessages(TIMER);
+            }
+        }, new ListenerCycle.Gps() {
+            @Override
+            public void start(long interval) {
+                addListener(interval);
             }
 
-            private boolean sameLocation(Location a, Location b) {
-                Log.d(LOG, "same location as before");
-                return a != null && b != null && a.getTime() == b.getTime();
+            @Override
+            public void stop() {
+                removeListener();
             }
+        });
 
-            private float dist(Location a, Location b) {
-                if (a == null || b == null) {
-                    return Float.MAX_VALUE;
-                } else {
-                    return a.distanceTo(b);
+        // restart on preference change
+        preferenceListener = new OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences p, String key) {
+                loadPreferences();
+                dataListener.loadPreferences();
+                updateStandbyListeners();
+                cycle.stop();
+                if (running) {
+                    cycle.start();
                 }
             }
         };
-        thread.start();
+        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(preferenceListener);
     }
 
     /**
@@ -163,18 +147,41 @@ public class ActiveListenerService extends Service {
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        this.reschedule = true;
-        handler.sendEmptyMessage(START_LISTENING);
+        running = true;
+        updateStandbyListeners();
+        cycle.start();
         return START_STICKY;
     }
 
+    /**
+     * The listeners that stay registered while the GPS sleeps: the
+     * accelerometer is only used by the adaptive policies, the signal changes
+     * of the collector end a sleep and tell the duty cycle how often the
+     * signal changes.
+     */
+    private void updateStandbyListeners() {
+        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        if (running && accelerometer != null && !DutyCycle.FIXED.equals(dutyCycle.getPolicy())) {
+            sensorManager.registerListener(motion, accelerometer, SensorManager.SENSOR_DELAY_NORMAL);
+        } else {
+            sensorManager.unregisterListener(motion);
+        }
+        dataListener.setSignalListener(running ? signalListener : null);
+    }
+
     @Override
     public void onDestroy() {
         Log.i(LOG_TAG, "destroy");
-        stopListening();
-        handler.removeMessages(START_LISTENING);
-        this.reschedule = false;
-        stopListening();
+        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        running = false;
+        updateStandbyListeners();
+        handler.removeMessages(TRIGGER);
+        signalTrigger.cancel();
+        Log.i(LOG_TAG, "signal triggers " + signalTrigger.getStats());
+        cycle.stop();
+        // the process may be killed right after this, so wait for the rows
+        dataListener.flush();
+        DbHandler.get(this).flush();
     }
 
     @Override
@@ -188,41 +195,97 @@ public class ActiveListenerService extends Service {
         sleepBetweenMeasures = Preferences.getAsLong(preferences, Preferences.sleep_between_measures, 10) * 1000l;
         updateDuration = Preferences.getAsLong(preferences, Preferences.update_duration, 30) * 1000l;
 
-        minLocationTime = Preferences.getAsLong(preferences, Preferences.min_location_time, 60) * 1000l;
+        minLocationTime = Preferences.getSecondsAsMillis(preferences, Preferences.min_location_time, 60);
         minLocationDistance = Preferences.getAsLong(preferences, Preferences.min_location_distance, 50);
 
         updateOnSignalChange = preferences.getBoolean(Preferences.updateOnSignalChange, true);
+        signalTrigger.configure((int) Preferences.getAsLong(preferences, Preferences.triggerMinDelta, 3),
+                (int) Preferences.getAsLong(preferences, Preferences.triggerPerHour, 12));
 
         // ensure a minimum value
         minLocationTime = Math.max(minLocationTime, MIN_TIME);
+
+        dutyCycle.configure(preferences.getString(Preferences.dutyCyclePolicy, DutyCycle.BALANCED),
+                updateDuration, sleepBetweenMeasures, minLocationTime);
     }
 
-    private void addListener() {
-        Log.i(LOG_TAG, "add listeners. minTime: " + minLocationTime + " / min dist: " + minLocationDistance);
-        telephonyManager.listen(dataListener, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
-        if (updateOnSignalChange) {
-            telephonyManager.listen(trigger, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
-        }
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, minLocationTime, minLocationDistance, dataListener);
+    private void addListener(long interval) {
+        Log.i(LOG_TAG, "add listeners. minTime: " + interval + " / min dist: " + minLocationDistance);
+        dataListener.attach(DataListener.SOURCE_ACTIVE);
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, interval, Math.max(0, minLocationDistance), fixes);
 //        locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0, dataListener);
         locationManager.addGpsStatusListener(dataListener);
     }
 
     private void removeListener() {
         Log.i(LOG_TAG, "remove listeners");
-        telephonyManager.listen(dataListener, PhoneStateListener.LISTEN_NONE);
-        telephonyManager.listen(trigger, PhoneStateListener.LISTEN_NONE);
-        locationManager.removeUpdates(dataListener);
+        dataListener.detach(DataListener.SOURCE_ACTIVE);
+        locationManager.removeUpdates(fixes);
         locationManager.removeGpsStatusListener(dataListener);
     }
 
     /**
-     * Class that triggers a measurement when the signal strength changes
+     * Passes the fixes of the GPS to the data listener and the cycle
+     */
+    class FixListener implements LocationListener {
+        @Override
+        public void onLocationChanged(Location location) {
+            dataListener.onLocationChanged(location, DataListener.SOURCE_ACTIVE);
+            if (location != null) {
+                cycle.onFix(location);
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+    }
+
+    /**
+     * Triggers a measurement when the signal strength reported by the
+     * collector changes noticeably while the GPS sleeps, see
+     * {@link SignalTrigger}
      */
-    class SignalChangeTrigger extends PhoneStateListener {
+    class SignalChangeListener implements DataListener.SignalListener {
+        @Override
+        public void onSignalChanged(int signal, long now) {
+            dutyCycle.onSignalChange(now);
+            if (cycle.getState() != ListenerCycle.SLEEPING) {
+                // the GPS is on, the change is recorded anyway
+                signalTrigger.setReference(signal);
+            } else if (updateOnSignalChange) {
+                long delay = signalTrigger.offer(signal, now);
+                if (delay >= 0) {
+                    handler.sendEmptyMessageDelayed(TRIGGER, delay);
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds the accelerometer into the duty cycle and ends a sleep that was
+     * chosen because the phone did not move
+     */
+    class MotionListener implements SensorEventListener {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            float x = event.values[0];
+            float y = event.values[1];
+            float z = event.values[2];
+            dutyCycle.onAcceleration(Math.sqrt(x * x + y * y + z * z), System.currentTimeMillis());
+            cycle.onMotion();
+        }
+
         @Override
-        public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-            locationManager.requestSingleUpdate(LocationManager.GPS_PROVIDER, dataListener, getMainLooper());
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
         }
     }
 }
@@ -84,6 +84,18 @@ public class CellMapperMain extends SherlockActivity {
                     .create().show();
             preferences.edit().putBoolean(Preferences.showWhatsNew, false).commit();
         }
+
+        // move old data into the archive
+        db.archive((int) Preferences.getAsLong(preferences, Preferences.archiveAfterDays, 90));
+        // delete old data
+        long acknowledged = Long.MAX_VALUE;
+        if (preferences.getBoolean(Preferences.retainUntilUploaded, true)) {
+            String key = Preferences.uploadedUntilKey(preferences.getString(Preferences.uploadURL, ""),
+                    preferences.getString(Preferences.login, "").trim());
+            acknowledged = preferences.getLong(key, Long.MIN_VALUE);
+        }
+        db.retain((int) Preferences.getAsLong(preferences, Preferences.retentionDays, 0), acknowledged,
+                (int) Preferences.getAsLong(preferences, Preferences.retentionMaxMb, 0));
     }
 
     @Override
@@ -114,7 +126,10 @@ public class CellMapperMain extends SherlockActivity {
         stopActiveService();
         stopUiUpdates();
         stopPassiveService();
-        db.close();
+        // the db is shared with the services and lives as long as the
+        // process, so it is not closed. Maintenance runs in short steps, the
+        // flush waits for one of them at most.
+        db.flush();
     }
 
     private void stopActiveService() {
@@ -189,6 +204,10 @@ public class CellMapperMain extends SherlockActivity {
                 sb.append("Passive service running: " + MobileStatusUtils.isServiceRunning(context, PassiveListenerService.class) + "\n");
                 sb.append(db.getLastEntryString()).append("\n");
                 sb.append("Data rows: " + db.getRows()).append("\n");
+                int migration = db.getMigrationProgress();
+                if (migration >= 0) {
+                    sb.append("Upgrading database: " + migration + "%\n");
+                }
                 sb.append("------\n");
                 sb.append(db.getLastRowAsString());
 
@@ -233,7 +252,11 @@ public class CellMapperMain extends SherlockActivity {
                 return true;
 
             case R.id.menu_upload:
-                upload();
+                upload(false);
+                return true;
+
+            case R.id.menu_uploadAll:
+                upload(true);
                 return true;
 
             case R.id.menu_saveSD:
@@ -245,8 +268,12 @@ public class CellMapperMain extends SherlockActivity {
         }
     }
 
-    private void upload() {
-        Log.i(LOG_TAG, "upload data");
+    /**
+     * @param fullResend upload all data instead of only the data that has not
+     *            been uploaded to this server yet
+     */
+    private void upload(boolean fullResend) {
+        Log.i(LOG_TAG, "upload data, full resend: " + fullResend);
 
         final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         String url = preferences.getString(Preferences.uploadURL, null);
@@ -272,7 +299,7 @@ public class CellMapperMain extends SherlockActivity {
             return;
         }
 
-        new UrlExporter(this).execute();
+        new UrlExporter(this, fullResend).execute();
     }
 
     /**
@@ -5,16 +5,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.location.LocationManager;
 import android.os.IBinder;
-import android.telephony.PhoneStateListener;
-import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import de.locked.cellmapper.model.DataListener;
+import de.locked.cellmapper.model.DbHandler;
 
 public class PassiveListenerService extends Service {
     private static final String LOG_TAG = PassiveListenerService.class.getName();
     private LocationManager locationManager;
-    private TelephonyManager telephonyManager;
     private DataListener dataListener;
 
     @Override
@@ -23,8 +21,7 @@ public class PassiveListenerService extends Service {
         Log.i(LOG_TAG, "start passive service");
 
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-        telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
-        dataListener = new DataListener(this);
+        dataListener = DataListener.get(this);
 
         addListener();
     }
@@ -40,6 +37,9 @@ public class PassiveListenerService extends Service {
     @Override
     public void onDestroy() {
         removeListener();
+        // the process may be killed right after this, so wait for the rows
+        dataListener.flush();
+        DbHandler.get(this).flush();
     }
 
     @Override
@@ -48,12 +48,13 @@ public class PassiveListenerService extends Service {
     }
 
     private void addListener() {
-        telephonyManager.listen(dataListener, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
-        locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0, dataListener);
+        dataListener.attach(DataListener.SOURCE_PASSIVE);
+        locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0,
+                dataListener.listenerFor(DataListener.SOURCE_PASSIVE));
     }
 
     private void removeListener() {
-        telephonyManager.listen(dataListener, PhoneStateListener.LISTEN_NONE);
-        locationManager.removeUpdates(dataListener);
+        dataListener.detach(DataListener.SOURCE_PASSIVE);
+        locationManager.removeUpdates(dataListener.listenerFor(DataListener.SOURCE_PASSIVE));
     }
 }
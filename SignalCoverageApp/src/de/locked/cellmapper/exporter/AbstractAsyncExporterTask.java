@@ -1,22 +1,24 @@
 package de.locked.cellmapper.exporter;
 
+import java.io.IOException;
 import java.util.Random;
 
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import de.locked.cellmapper.CellMapperMain;
 import de.locked.cellmapper.R;
 import de.locked.cellmapper.model.DbHandler;
+import de.locked.cellmapper.model.MeasurementReader;
 
 /**
  * Async task that queries the database and saves the result using the
- * DataExporter while updating the given progress bar
+ * DataExporter while updating the given progress bar. The database is only
+ * accessed from the background thread.
  */
 public abstract class AbstractAsyncExporterTask extends AsyncTask<Void, Integer, Void> {
     @SuppressWarnings("unused")
@@ -25,8 +27,8 @@ public abstract class AbstractAsyncExporterTask extends AsyncTask<Void, Integer,
     private final String message;
     private final int icon;
     //
-    protected final Cursor cursor;
-    protected final int max;
+    protected final DbHandler db;
+    protected int max;
     private final String headline;
     private final int notificationId;
 
@@ -38,14 +40,36 @@ public abstract class AbstractAsyncExporterTask extends AsyncTask<Void, Integer,
     public AbstractAsyncExporterTask(Context c, int messageId, int icon) {
         this.context = c;
         this.icon = icon;
-        DbHandler db = DbHandler.get(context);
-        this.cursor = db.getAll();
-        this.max = db.getRows();
+        this.db = DbHandler.get(context);
         this.message = c.getString(messageId);
         this.headline = c.getString(R.string.exportNotificationHeadline);
         this.notificationId = new Random().nextInt();
     }
 
+    /**
+     * Open a reader over all rows and set max accordingly. Must be called from
+     * the background thread.
+     *
+     * @throws IOException if no reader was free in time
+     */
+    protected MeasurementReader openReader() throws IOException {
+        return openReader(Long.MIN_VALUE);
+    }
+
+    /**
+     * Open a reader over all rows younger than the given time and set max
+     * accordingly. Must be called from the background thread.
+     * 
+     * @param after time in ms
+     * @throws IOException if no reader was free in time
+     */
+    protected MeasurementReader openReader(long after) throws IOException {
+        db.flush();
+        db.awaitMigration();
+        max = Math.max(1, db.getRows(after));
+        return db.read(after);
+    }
+
     protected Context getContext() {
         return context;
     }
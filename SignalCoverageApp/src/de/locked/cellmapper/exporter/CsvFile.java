@@ -0,0 +1,59 @@
+package de.locked.cellmapper.exporter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import android.os.Environment;
+import android.util.Log;
+import de.locked.cellmapper.model.Measurement;
+
+/**
+ * All columns of {@link Measurement#COLUMNS}, separated by semicolons
+ */
+class CsvFile implements FormatWriter {
+    private static final String LOG_TAG = CsvFile.class.getName();
+
+    private final OutputStreamWriter os;
+    private final String[] values = new String[Measurement.COLUMNS.length];
+
+    public CsvFile(String fileName) throws IOException {
+        File root = Environment.getExternalStorageDirectory();
+        if (!root.canWrite()) {
+            Log.e(LOG_TAG, "can't write to SD root: " + root.getAbsolutePath());
+            throw new IOException("sd not writable");
+        }
+
+        File dest = new File(root, fileName);
+        dest.getParentFile().mkdirs();
+        dest.createNewFile();
+        Log.i(LOG_TAG, "created " + dest.getAbsolutePath());
+
+        os = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(dest, false), 50 * 1024));
+    }
+
+    @Override
+    public void begin() throws IOException {
+        for (String name : Measurement.COLUMNS) {
+            os.append(name).append(";");
+        }
+        os.append("\n");
+    }
+
+    @Override
+    public void write(Measurement m) throws IOException {
+        for (String val : m.toStrings(values)) {
+            os.append(val == null ? "" : val).append(";");
+        }
+        os.append("\n");
+    }
+
+    @Override
+    public void end() throws IOException {
+        if (os != null) {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package de.locked.cellmapper.exporter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+import de.locked.cellmapper.model.Measurement;
+import de.locked.cellmapper.model.MeasurementReader;
+
+/**
+ * Reads the rows once and passes them to any number of {@link FormatWriter}s.
+ * The rows are copied into batches of {@link #BATCH_SIZE} rows, every batch
+ * is shared by all writers. Each writer runs on its own thread and takes the
+ * batches from its own queue.
+ * <p/>
+ * There are {@link #BATCHES} batches that are reused as soon as all writers
+ * are done with them, so the memory is bounded and the reader waits for the
+ * slowest writer instead of buffering the whole export.
+ */
+class ExportPipeline {
+    private static final String LOG_TAG = ExportPipeline.class.getName();
+    static final int BATCH_SIZE = 256;
+    // batches in flight, one of them is filled by the reader
+    static final int BATCHES = 4;
+    // marks the end of the rows
+    private static final Batch END = new Batch(0);
+
+    /**
+     * progress and cancellation of the export, called from the reading thread
+     */
+    interface Callback {
+        boolean isCancelled();
+
+        /**
+         * @param rows rows read so far
+         */
+        void onProgress(int rows);
+    }
+
+    /**
+     * rows that are shared by all writers, it is returned to the pool when
+     * the last writer is done
+     */
+    private static class Batch {
+        final Measurement[] rows;
+        final AtomicInteger readers = new AtomicInteger();
+        int count = 0;
+
+        Batch(int size) {
+            rows = new Measurement[size];
+            for (int i = 0; i < size; i++) {
+                rows[i] = new Measurement();
+            }
+        }
+    }
+
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(BATCHES);
+    // the first failure of a writer
+    private volatile Exception failure;
+
+    ExportPipeline(List<FormatWriter> writers) {
+        if (writers.isEmpty()) {
+            throw new IllegalArgumentException("no writers");
+        }
+        for (FormatWriter writer : writers) {
+            workers.add(new Worker(writer));
+        }
+        for (int i = 0; i < BATCHES; i++) {
+            free.add(new Batch(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * Pass all rows of the reader to the writers and end them. Blocks until
+     * all writers are done.
+     *
+     * @return the number of rows read
+     * @throws IOException the first failure of a writer
+     */
+    int run(MeasurementReader reader, Callback callback) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+
+        int n = 0;
+        boolean interrupted = false;
+        try {
+            Batch batch = null;
+            while (failure == null && !callback.isCancelled() && reader.next()) {
+                if (batch == null) {
+                    batch = free.take();
+                    batch.count = 0;
+                }
+                batch.rows[batch.count++].set(reader.get());
+                n++;
+                if (batch.count == BATCH_SIZE) {
+                    publish(batch);
+                    batch = null;
+                    callback.onProgress(n);
+                }
+            }
+            if (batch != null) {
+                publish(batch);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            for (Worker worker : workers) {
+                interrupted |= putUninterruptibly(worker.queue, END);
+            }
+            for (Worker worker : workers) {
+                interrupted |= joinUninterruptibly(worker);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, "exported " + n + " rows in " + duration + "ms (" + (n * 1000L / duration) + " rows/s)");
+        for (Worker worker : workers) {
+            Log.i(LOG_TAG, worker.getName() + " busy for " + worker.busy + "ms");
+        }
+
+        Exception e = failure;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e != null) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return n;
+    }
+
+    private void publish(Batch batch) throws InterruptedException {
+        batch.readers.set(workers.size());
+        for (Worker worker : workers) {
+            worker.queue.put(batch);
+        }
+    }
+
+    /**
+     * @return true if the thread was interrupted
+     */
+    private static boolean putUninterruptibly(BlockingQueue<Batch> queue, Batch batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(batch);
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the thread was interrupted
+     */
+    private static boolean joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the batches of its queue. After a failure the batches are still
+     * taken and released, so the reader does not block.
+     */
+    private class Worker extends Thread {
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(BATCHES);
+        private final FormatWriter writer;
+        // time spent writing in ms
+        long busy = 0;
+
+        Worker(FormatWriter writer) {
+            super(LOG_TAG + "." + writer.getClass().getSimpleName());
+            this.writer = writer;
+        }
+
+        @Override
+        public void run() {
+            boolean failed = !write(true, null);
+            try {
+                while (true) {
+                    Batch batch = queue.take();
+                    if (batch == END) {
+                        break;
+                    }
+                    if (!failed) {
+                        failed = !write(false, batch);
+                    }
+                    if (batch.readers.decrementAndGet() == 0) {
+                        free.add(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                fail(e);
+            } finally {
+                try {
+                    writer.end();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * @return false if the writer failed
+         */
+        private boolean write(boolean begin, Batch batch) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                if (begin) {
+                    writer.begin();
+                } else {
+                    for (int i = 0; i < batch.count; i++) {
+                        writer.write(batch.rows[i]);
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            } finally {
+                busy += SystemClock.elapsedRealtime() - start;
+            }
+            return false;
+        }
+
+        private void fail(Exception e) {
+            Log.e(LOG_TAG, getName() + " failed", e);
+            synchronized (ExportPipeline.this) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package de.locked.cellmapper.exporter;
+
+import java.io.IOException;
+
+import de.locked.cellmapper.model.Measurement;
+
+/**
+ * One output format of an export. The rows are passed by the
+ * {@link ExportPipeline}, all methods of a writer are called from the same
+ * thread.
+ */
+public interface FormatWriter {
+
+    /**
+     * called before the first row, e.g. to write a header
+     */
+    public abstract void begin() throws IOException;
+
+    /**
+     * @param m the row, it is reused after the call returns
+     */
+    public abstract void write(Measurement m) throws IOException;
+
+    /**
+     * called after the last row or after the export was cancelled or failed,
+     * must release the output
+     */
+    public abstract void end() throws IOException;
+
+}
@@ -0,0 +1,118 @@
+package de.locked.cellmapper.exporter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+
+import android.os.Environment;
+import android.util.Log;
+import de.locked.cellmapper.model.Measurement;
+
+/**
+ * One extruded square per row, the size is the accuracy and the height the
+ * signal strength
+ */
+class KmlFile implements FormatWriter {
+    private static final String LOG_TAG = KmlFile.class.getName();
+
+    private final KmlOutputStream os;
+    // http://www.ig.utexas.edu/outreach/googleearth/latlong.html
+    private final double mToDegree = 0.00001;
+    private final float heightMultiplyer = 20;
+    // values > this value will be replaced by the default
+    private final int signalStrengthMaximum = 90;
+    // replace signalstrength > threshold by this value
+    private final int defaultSignalStrength = 0;
+
+    public KmlFile(String fileName) throws IOException {
+        File root = Environment.getExternalStorageDirectory();
+        if (!root.canWrite()) {
+            Log.e(LOG_TAG, "can't write to SD root: " + root.getAbsolutePath());
+            throw new IOException("sd not writable");
+        }
+
+        File dest = new File(root, fileName);
+        dest.getParentFile().mkdirs();
+        dest.createNewFile();
+        Log.i(LOG_TAG, "created " + dest.getAbsolutePath());
+
+        os = new KmlOutputStream(dest);
+    }
+
+    @Override
+    public void begin() throws IOException {
+        os.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + //
+                "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n" + //
+                "<Folder>\n" + //
+                "  <name>Signalstrength</name>\n" + //
+                "  <open>1</open>\n");
+    }
+
+    @Override
+    public void write(Measurement m) throws IOException {
+        addPoint((float) m.longitude, (float) m.latitude, m.signalStrength, (float) m.accuracy);
+    }
+
+    private void addPoint(float longitude, float latitude, float signalStrength, float accuracy) throws IOException {
+        if (accuracy > 50)
+            return;
+        double halfAcc = (accuracy / 2d) * mToDegree;
+
+        signalStrength = signalStrength > signalStrengthMaximum ? defaultSignalStrength : signalStrength;
+        signalStrength *= heightMultiplyer;
+
+        double leftLon = longitude - halfAcc;
+        double rightLon = longitude + halfAcc;
+        double topLat = latitude - halfAcc;
+        double bottomLat = latitude + halfAcc;
+        os.append("<Placemark>\n" + //
+                " <name>Signalstrength</name>\n" + //
+                "  <Polygon>\n" + //
+                "    <extrude>1</extrude>\n" + //
+                "    <altitudeMode>relativeToGround</altitudeMode>\n" + //
+                "    <outerBoundaryIs>\n");
+        os.append("      <LinearRing>\n");
+        os.append("        <coordinates>\n");
+
+        os.append(leftLon + "," + topLat + "," + signalStrength + "\n"); // tl
+        os.append(rightLon + "," + topLat + "," + signalStrength + "\n"); // tr
+        os.append(rightLon + "," + bottomLat + "," + signalStrength + "\n"); // br
+        os.append(leftLon + "," + bottomLat + "," + signalStrength + "\n"); // bl
+        os.append(leftLon + "," + topLat + "," + signalStrength + "\n"); // tl
+
+        os.append("        </coordinates>\n");
+        os.append("      </LinearRing>\n");
+
+        os.append("    </outerBoundaryIs>\n" + //
+                "  </Polygon>\n" + //
+                "</Placemark>\n");
+    }
+
+    @Override
+    public void end() throws IOException {
+        if (os != null) {
+            os.append("</Folder>\n" + //
+                    "</kml>");
+            os.close();
+        }
+    }
+
+    static class KmlOutputStream extends FilterOutputStream {
+
+        public KmlOutputStream(File dest) throws IOException {
+            super(new BufferedOutputStream(new FileOutputStream(dest, false), 100 * 1024));
+        }
+
+        public void append(String s) throws IOException {
+            write(s.getBytes());
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // FilterOutputStream writes byte by byte
+            out.write(buffer, offset, length);
+        }
+    }
+}
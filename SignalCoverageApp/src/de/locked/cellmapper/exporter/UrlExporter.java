@@ -14,37 +14,46 @@ import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
 import de.locked.cellmapper.R;
+import de.locked.cellmapper.model.Measurement;
+import de.locked.cellmapper.model.MeasurementReader;
 import de.locked.cellmapper.model.Preferences;
 import de.locked.signalcoverage.share.v2.ApiData;
 import de.locked.signalcoverage.share.v2.ApiUser;
 
+/**
+ * Uploads the data to the configured server. Only rows that are younger than
+ * the last acknowledged upload to this server and user are sent, unless a
+ * full resend is requested.
+ * <p/>
+ * The acknowledged time is the time of the last row of a chunk. Several rows
+ * may have the same time, so a chunk only ends before a row with a later
+ * time and rows of the same time are always acknowledged together.
+ */
 public class UrlExporter extends AbstractAsyncExporterTask {
     private static final String LOG_TAG = UrlExporter.class.getName();
     private final Rest rest;
     private final SharedPreferences preferences;
+    private final String baseURL;
+    private final boolean fullResend;
     private final int chunksize = 300;
 
     public UrlExporter(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param context
+     * @param fullResend upload all rows instead of only the new ones
+     */
+    public UrlExporter(Context context, boolean fullResend) {
         super(context, R.string.exportNotificationUrl, android.R.drawable.ic_menu_upload);
 
         preferences = PreferenceManager.getDefaultSharedPreferences(context);
-        String baseURL = preferences.getString(Preferences.uploadURL, null);
+        baseURL = preferences.getString(Preferences.uploadURL, null);
         rest = (baseURL != null) ? new Rest(baseURL) : null;
+        this.fullResend = fullResend;
     }
 
-    private String getString(String col){
-    	return cursor.getString(cursor.getColumnIndex(col));
-    }
-    private int getInt(String col){
-    	return cursor.getInt(cursor.getColumnIndex(col));
-    }
-    private double getDouble(String col){
-    	return cursor.getDouble(cursor.getColumnIndex(col));
-    }
-    private float getFloat(String col){
-    	return cursor.getFloat(cursor.getColumnIndex(col));
-    }
-    
     @Override
     protected Void doInBackground(Void... params) {
         new org.apache.commons.codec.binary.Base64();
@@ -61,33 +70,49 @@ public class UrlExporter extends AbstractAsyncExporterTask {
 
             // build the data list
             int i = 0;
+            long lastTime = 0;
+            long uploadedUntil = fullResend ? Long.MIN_VALUE : getUploadedUntil(user);
+            Log.i(LOG_TAG, "uploading rows after " + uploadedUntil);
+            MeasurementReader reader = openReader(uploadedUntil);
             Collection<ApiData> dataList = new ArrayList<ApiData>(chunksize);
-            while (cursor.moveToNext() && !isCancelled()) {
-                ApiData data = new ApiData();
-                data.time = getInt("time");
-                data.accuracy = getDouble("accuracy");
-                data.altitude = getFloat("altitude");
-                data.satellites = getInt("satellites");
-                data.latitude = getDouble("latitude");
-                data.longitude = getDouble("longitude");
-                data.speed = getDouble("speed");
-                data.signalStrength = getInt("signalStrength");
-                data.carrier = getString("carrier");
-                data.androidRelease = getString("androidRelease");
-                data.manufacturer = getString("manufacturer");
-                data.model = getString("model");
-                data.device = getString("device");
-                data.osVersion = getString("osVersion");
-                dataList.add(data);
-                i++;
-
-                if (dataList.size() == chunksize) {
-                    upload(user, dataList, i);
+            // all rows were read, the last chunk is complete
+            boolean complete = false;
+            try {
+                while (!isCancelled()) {
+                    if (!reader.next()) {
+                        complete = true;
+                        break;
+                    }
+                    Measurement m = reader.get();
+                    if (dataList.size() >= chunksize && m.time != lastTime) {
+                        upload(user, dataList, i, lastTime);
+                    }
+                    ApiData data = new ApiData();
+                    data.time = m.getTimeSeconds();
+                    data.accuracy = m.accuracy;
+                    data.altitude = (float) m.altitude;
+                    data.satellites = m.satellites;
+                    data.latitude = m.latitude;
+                    data.longitude = m.longitude;
+                    data.speed = m.speed;
+                    data.signalStrength = m.signalStrength;
+                    data.carrier = m.carrier;
+                    data.androidRelease = m.androidRelease;
+                    data.manufacturer = m.manufacturer;
+                    data.model = m.model;
+                    data.device = m.device;
+                    data.osVersion = m.osVersion;
+                    dataList.add(data);
+                    lastTime = m.time;
+                    i++;
                 }
+            } finally {
+                reader.close();
             }
-            cursor.close();
-            if (!dataList.isEmpty()) {
-                upload(user, dataList, i);
+            // a cancelled export may have stopped within a time, the rest is
+            // sent next time
+            if (complete && !dataList.isEmpty()) {
+                upload(user, dataList, i, lastTime);
             }
         } catch (IOException e) {
             notify("Encountered an issue: " + e.getMessage(), android.R.drawable.stat_notify_error);
@@ -97,16 +122,38 @@ public class UrlExporter extends AbstractAsyncExporterTask {
         return null;
     }
 
-    private void upload(ApiUser user, Collection<ApiData> dataList, int i) throws UnsupportedEncodingException,
-            ClientProtocolException, IOException {
+    /**
+     * @param lastTime time in ms of the last row in the list
+     */
+    private void upload(ApiUser user, Collection<ApiData> dataList, int i, long lastTime)
+            throws UnsupportedEncodingException, ClientProtocolException, IOException {
         int statusCode = rest.putData(user, dataList);
-        dataList.clear();
-        publishProgress(i * 100 / max);
-
         if (statusCode != 200) {
             String message = "Upload error, status code: " + statusCode;
             throw new IOException(message);
         }
+
+        setUploadedUntil(user, lastTime);
+        dataList.clear();
+        publishProgress(i * 100 / max);
+    }
+
+    /**
+     * @return the time in ms of the youngest row acknowledged by the server for
+     *         this user, or Long.MIN_VALUE if nothing was uploaded yet
+     */
+    private long getUploadedUntil(ApiUser user) {
+        return preferences.getLong(getUploadedUntilKey(user), Long.MIN_VALUE);
+    }
+
+    private void setUploadedUntil(ApiUser user, long time) {
+        if (time > getUploadedUntil(user)) {
+            preferences.edit().putLong(getUploadedUntilKey(user), time).commit();
+        }
+    }
+
+    private String getUploadedUntilKey(ApiUser user) {
+        return Preferences.uploadedUntilKey(baseURL, Integer.toString(user.userId));
     }
 
     private ApiUser getUser() throws IOException {
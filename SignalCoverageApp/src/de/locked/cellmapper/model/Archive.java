@@ -0,0 +1,103 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Cold storage for old rows. Rows older than a given age are moved from the
+ * partitions into compressed {@link ArchiveBlock}s, one block per row of the
+ * archive table. Only full blocks are archived, the rest stays in the
+ * partitions.
+ * <p/>
+ * Archived rows are still returned by the {@link MeasurementReader} but are
+ * not part of the spatial index.
+ */
+class Archive {
+    private static final String LOG_TAG = Archive.class.getName();
+    static final String TABLE = "Archive";
+
+    private Archive() {
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                " fromTime INTEGER PRIMARY KEY, " + //
+                " toTime INT, " + //
+                " rows INT, " + //
+                " data BLOB " + //
+                " );");
+    }
+
+    /**
+     * Move the oldest full block of rows older than the given time into the
+     * archive, in one transaction.
+     *
+     * @param before time in ms
+     * @param block reused for the rows
+     * @return the number of archived rows, 0 if there is no full block left
+     */
+    static int archiveStep(SQLiteDatabase db, long before, ArchiveBlock block) {
+        block.count = 0;
+        List<String> partitions = Partitions.overlapping(db, Long.MIN_VALUE, before - 1);
+        Cursor cursor = db.rawQuery(Partitions.union(partitions, MeasurementReader.COLUMNS, "time < ?")
+                + " ORDER BY time LIMIT " + ArchiveBlock.SIZE,
+                Partitions.args(partitions, Long.toString(before)));
+        try {
+            while (cursor.moveToNext()) {
+                block.add(cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!block.isFull()) {
+            Log.i(LOG_TAG, "archived all full blocks older than " + before);
+            return 0;
+        }
+        // rows with the same time as the last one may follow, they stay for
+        // the next block, the partitions are cleared up to a time
+        while (block.count > 0 && block.time[block.count - 1] == block.time[ArchiveBlock.SIZE - 1]) {
+            block.count--;
+        }
+        if (block.count == 0) {
+            Log.w(LOG_TAG, "block of rows with the same time " + block.time[0]);
+            return 0;
+        }
+
+        long from = block.time[0];
+        long to = block.time[block.count - 1];
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE
+                    + " (fromTime, toTime, rows, data) VALUES (?, ?, ?, ?)");
+            try {
+                insert.bindLong(1, from);
+                insert.bindLong(2, to);
+                insert.bindLong(3, block.count);
+                insert.bindBlob(4, block.encode());
+                insert.executeInsert();
+            } finally {
+                insert.close();
+            }
+
+            for (String partition : partitions) {
+                db.execSQL("DELETE FROM " + partition + " WHERE time <= ?", new Object[]{to});
+            }
+            db.setTransactionSuccessful();
+            return block.count;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return 0;
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return 0;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Up to {@link #SIZE} archived rows, stored column by column and deflated:
+ * <ul>
+ * <li>time, latitude, longitude and altitude as delta encoded varints
+ * (lat/lon with a fixed point of 1e-7 degrees, altitude in cm)</li>
+ * <li>accuracy and speed as float bits, they are floats in the location</li>
+ * <li>satellites, signal strength and session id as varints, the session is
+ * the dictionary code of the carrier and device values</li>
+ * <li>since version 2: the signal delta as varints</li>
+ * <li>since version 3: the satellite summary as int</li>
+ * <li>since version 4: the source as varints</li>
+ * <li>since version 5: the packed signal as varints, see {@link SignalCodec}</li>
+ * </ul>
+ * Columns that were added later are appended, so older blocks can still be
+ * decoded.
+ * The arrays are reused when decoding the next block.
+ */
+class ArchiveBlock {
+    static final int SIZE = 4096;
+    private static final int VERSION = 5;
+    private static final double LOCATION_SCALE = 1e7;
+    private static final double ALTITUDE_SCALE = 100;
+
+    final long[] time = new long[SIZE];
+    final double[] accuracy = new double[SIZE];
+    final double[] altitude = new double[SIZE];
+    final int[] satellites = new int[SIZE];
+    final double[] latitude = new double[SIZE];
+    final double[] longitude = new double[SIZE];
+    final double[] speed = new double[SIZE];
+    final int[] signalStrength = new int[SIZE];
+    final int[] session = new int[SIZE];
+    final int[] signalDelta = new int[SIZE];
+    final int[] satelliteSummary = new int[SIZE];
+    final int[] source = new int[SIZE];
+    final long[] signal = new long[SIZE];
+    int count = 0;
+
+    boolean isFull() {
+        return count == SIZE;
+    }
+
+    /**
+     * add the current row of a cursor that selected
+     * {@link MeasurementReader#COLUMNS}
+     */
+    void add(Cursor c) {
+        time[count] = c.getLong(0);
+        accuracy[count] = c.getDouble(1);
+        altitude[count] = c.getDouble(2);
+        satellites[count] = c.getInt(3);
+        latitude[count] = c.getDouble(4);
+        longitude[count] = c.getDouble(5);
+        speed[count] = c.getDouble(6);
+        signalStrength[count] = c.getInt(7);
+        session[count] = c.getInt(8);
+        signalDelta[count] = c.getInt(9);
+        satelliteSummary[count] = c.getInt(10);
+        source[count] = c.getInt(11);
+        signal[count] = c.getLong(12);
+        count++;
+    }
+
+    void get(int i, Measurement m, Sessions sessions) {
+        m.time = time[i];
+        m.accuracy = accuracy[i];
+        m.altitude = altitude[i];
+        m.satellites = satellites[i];
+        m.latitude = latitude[i];
+        m.longitude = longitude[i];
+        m.speed = speed[i];
+        m.signalStrength = signalStrength[i];
+        sessions.fill(session[i], m);
+        m.signalDelta = signalDelta[i];
+        m.satelliteSummary = satelliteSummary[i];
+        m.source = source[i];
+        m.signal = signal[i];
+    }
+
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 8);
+        OutputStream os = new BufferedOutputStream(new DeflaterOutputStream(bytes));
+        writeVarint(os, VERSION);
+        writeVarint(os, count);
+
+        long last = 0;
+        for (int i = 0; i < count; i++) {
+            last = writeDelta(os, time[i], last);
+        }
+        last = 0;
+        for (int i = 0; i < count; i++) {
+            last = writeDelta(os, Math.round(latitude[i] * LOCATION_SCALE), last);
+        }
+        last = 0;
+        for (int i = 0; i < count; i++) {
+            last = writeDelta(os, Math.round(longitude[i] * LOCATION_SCALE), last);
+        }
+        last = 0;
+        for (int i = 0; i < count; i++) {
+            last = writeDelta(os, Math.round(altitude[i] * ALTITUDE_SCALE), last);
+        }
+        for (int i = 0; i < count; i++) {
+            writeInt(os, Float.floatToIntBits((float) accuracy[i]));
+        }
+        for (int i = 0; i < count; i++) {
+            writeInt(os, Float.floatToIntBits((float) speed[i]));
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarint(os, zigzag(satellites[i]));
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarint(os, zigzag(signalStrength[i]));
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarint(os, zigzag(session[i]));
+        }
+        // version 2
+        for (int i = 0; i < count; i++) {
+            writeVarint(os, zigzag(signalDelta[i]));
+        }
+        // version 3
+        for (int i = 0; i < count; i++) {
+            writeInt(os, satelliteSummary[i]);
+        }
+        // version 4
+        for (int i = 0; i < count; i++) {
+            writeVarint(os, zigzag(source[i]));
+        }
+        // version 5, never negative
+        for (int i = 0; i < count; i++) {
+            writeVarint(os, signal[i]);
+        }
+        os.close();
+        return bytes.toByteArray();
+    }
+
+    void decode(byte[] data) throws IOException {
+        InputStream is = new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+        try {
+            long version = readVarint(is);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unknown archive version " + version);
+            }
+            count = (int) readVarint(is);
+            if (count > SIZE) {
+                throw new IOException("archive block too large: " + count);
+            }
+
+            long last = 0;
+            for (int i = 0; i < count; i++) {
+                last += unzigzag(readVarint(is));
+                time[i] = last;
+            }
+            last = 0;
+            for (int i = 0; i < count; i++) {
+                last += unzigzag(readVarint(is));
+                latitude[i] = last / LOCATION_SCALE;
+            }
+            last = 0;
+            for (int i = 0; i < count; i++) {
+                last += unzigzag(readVarint(is));
+                longitude[i] = last / LOCATION_SCALE;
+            }
+            last = 0;
+            for (int i = 0; i < count; i++) {
+                last += unzigzag(readVarint(is));
+                altitude[i] = last / ALTITUDE_SCALE;
+            }
+            for (int i = 0; i < count; i++) {
+                accuracy[i] = Float.intBitsToFloat(readInt(is));
+            }
+            for (int i = 0; i < count; i++) {
+                speed[i] = Float.intBitsToFloat(readInt(is));
+            }
+            for (int i = 0; i < count; i++) {
+                satellites[i] = (int) unzigzag(readVarint(is));
+            }
+            for (int i = 0; i < count; i++) {
+                signalStrength[i] = (int) unzigzag(readVarint(is));
+            }
+            for (int i = 0; i < count; i++) {
+                session[i] = (int) unzigzag(readVarint(is));
+            }
+            for (int i = 0; i < count; i++) {
+                signalDelta[i] = version < 2 ? 0 : (int) unzigzag(readVarint(is));
+            }
+            for (int i = 0; i < count; i++) {
+                satelliteSummary[i] = version < 3 ? 0 : readInt(is);
+            }
+            for (int i = 0; i < count; i++) {
+                source[i] = version < 4 ? 0 : (int) unzigzag(readVarint(is));
+            }
+            for (int i = 0; i < count; i++) {
+                signal[i] = version < 5 ? 0 : readVarint(is);
+            }
+        } catch (IOException e) {
+            count = 0;
+            throw e;
+        } finally {
+            is.close();
+        }
+    }
+
+    private static long writeDelta(OutputStream os, long value, long last) throws IOException {
+        writeVarint(os, zigzag(value - last));
+        return value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(OutputStream os, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            os.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    private static long readVarint(InputStream is) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = is.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static void writeInt(OutputStream os, int value) throws IOException {
+        os.write(value >>> 24);
+        os.write(value >>> 16);
+        os.write(value >>> 8);
+        os.write(value);
+    }
+
+    private static int readInt(InputStream is) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = is.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+}
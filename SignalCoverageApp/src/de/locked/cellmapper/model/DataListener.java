@@ -1,7 +1,7 @@
 package de.locked.cellmapper.model;
 
 import android.content.Context;
-import android.location.GpsSatellite;
+import android.content.SharedPreferences;
 import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationListener;
@@ -9,7 +9,12 @@ import android.location.LocationManager;
 import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.telephony.NeighboringCellInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
@@ -17,21 +22,94 @@ import android.util.Log;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class DataListener extends PhoneStateListener implements LocationListener, GpsStatus.Listener {
+/**
+ * Process wide collector of the location and signal callbacks, see
+ * {@link #get(Context)}. The services attach to it as sources, the collector
+ * keeps a single telephony subscription while any source is attached or a
+ * {@link SignalListener} is set. Fixes are passed in through
+ * {@link #listenerFor(int)} and tagged with their source.
+ * <p/>
+ * The callbacks only post events to the ingestion thread, which runs the
+ * stages of a fix in order:
+ * <ol>
+ * <li>filter: duplicates of the same time and provider, e.g. a GPS fix
+ * received by the active and the passive source, airplane mode and out of
+ * date fixes</li>
+ * <li>match: hold the fix until the signal is known, see
+ * {@link SignalMatcher}</li>
+ * <li>thin: drop redundant fixes, see {@link Thinning}</li>
+ * <li>enrich: carrier and neighboring cells</li>
+ * <li>persist: queue the row for the writer thread of the db</li>
+ * </ol>
+ * At most {@link #MAX_PENDING} fixes wait for the ingestion thread, younger
+ * fixes are dropped until it caught up. Signal events are coalesced, the
+ * signal itself is added to the history right away.
+ */
+public class DataListener extends PhoneStateListener implements GpsStatus.Listener {
     private static final String LOG_TAG = DataListener.class.getName();
+    // sources of the fixes, stored with the rows
+    public static final int SOURCE_UNKNOWN = 0;
+    public static final int SOURCE_ACTIVE = 1;
+    public static final int SOURCE_PASSIVE = 2;
+    static final String[] SOURCE_NAMES = {"unknown", "active", "passive"};
+    // fixes that are remembered to detect duplicates
+    private static final int RECENT = 16;
     private static final SimpleDateFormat sdf = new SimpleDateFormat(
             "y-MM-dd HH:mm:ss", Locale.US);
+    // the neighboring cells are polled at most this often
+    private static final long NEIGHBORS_INTERVAL = 10000; // ms
+    // fixes waiting for the ingestion thread, younger ones are dropped
+    static final int MAX_PENDING = 32;
+    private static final int LOCATION = 0;
+    private static final int SIGNAL = 1;
+    private static final int UPDATE = 2;
+    private static HandlerThread thread;
+
+    /**
+     * Receives the signal changes of the subscription of the collector, e.g.
+     * to trigger a measurement while the GPS sleeps
+     */
+    public interface SignalListener {
+        /**
+         * called on the thread of the telephony callbacks, the main thread
+         *
+         * @param gsmSignalStrength ASU
+         * @param now time in ms
+         */
+        void onSignalChanged(int gsmSignalStrength, long now);
+    }
+
+    private static DataListener instance;
     private final Context context;
     private final LocationManager locationManager;
     private final TelephonyManager telephonyManager;
-    private final DbHandler db;
     private final ConnectivityManager connectivityManager;
-    private final int signalListMaxLength = 100;
-    private final LinkedList<SignalEntry> signalList = new LinkedList<SignalEntry>();
+    private final SignalHistory signals = new SignalHistory(100);
+    // runs the stages on the ingestion thread
+    private final Handler handler;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    // bit mask of the attached sources, guarded by this
+    private int attached = 0;
+    // guarded by this
+    private SignalListener signalListener;
+    private final LocationListener[] listeners = new LocationListener[SOURCE_NAMES.length];
+    // the following fields are only used by the ingestion thread
+    private final SignalMatcher matcher;
+    private final Thinning thinning;
+    // the latest report of the neighboring cells
+    private Neighbors neighbors = Neighbors.EMPTY;
+    private long neighborsPolled = 0;
+    // the report that was saved last
+    private Neighbors savedNeighbors;
+    // time and provider of the latest fixes, ring buffer
+    private final long[] recentTimes = new long[RECENT];
+    private final String[] recentProviders = new String[RECENT];
+    private int recentNext = 0;
     // device data
     private final String manufacturer = Build.MANUFACTURER; // HTC
     private final String device = Build.DEVICE; // bravo
@@ -40,9 +118,21 @@ public class DataListener extends PhoneStateListener implements LocationListener
     // Build.VERSION.SDK_INT returns the API version. In a rooted phone,
     // this might be null!
     private final String androidRelease = Build.VERSION.RELEASE; // android version like 2.3.7
-    private int satellitesInFix;
+    // see SatelliteSummary, the status is only used by onGpsStatusChanged
+    private volatile int satelliteSummary;
+    private GpsStatus gpsStatus;
 
-    public DataListener(Context context) {
+    /**
+     * @return the collector of the process
+     */
+    public static synchronized DataListener get(Context context) {
+        if (instance == null) {
+            instance = new DataListener(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DataListener(Context context) {
         this.context = context;
         this.locationManager = (LocationManager) context
                 .getSystemService(Context.LOCATION_SERVICE);
@@ -50,10 +140,80 @@ public class DataListener extends PhoneStateListener implements LocationListener
                 .getSystemService(Context.TELEPHONY_SERVICE));
         this.connectivityManager = (ConnectivityManager) context
                 .getSystemService(Context.CONNECTIVITY_SERVICE);
-        this.db = DbHandler.get(context);
 
         // http://stackoverflow.com/questions/5499217/how-to-recognize-that-cyanogenmod-is-on-a-board/9801191
         this.osVersion = System.getProperty("os.version");
+
+        this.thinning = new Thinning(new Thinning.Callback() {
+            @Override
+            public void onKeep(Thinning.Point point) {
+                save(point);
+            }
+        });
+        this.matcher = new SignalMatcher(signals, new SignalMatcher.Callback() {
+            @Override
+            public void onMatch(Location location, long tag, SignalHistory.Sample signal, long delta) {
+                // the summary at the time the fix was received
+                int summary = (int) (tag >>> 8);
+                thinning.offer(new Thinning.Point(location, (int) (tag & 0xFF), signal.gsmSignalStrength, delta,
+                        summary, SignalCodec.encode(signal)));
+            }
+        });
+        this.handler = new Handler(getThread().getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case LOCATION:
+                        pending.decrementAndGet();
+                        ingest((Location) msg.obj, msg.arg1, msg.arg2);
+                        break;
+                    case SIGNAL:
+                        pollNeighbors();
+                        update();
+                        break;
+                    case UPDATE:
+                        update();
+                        break;
+                    default:
+                        Log.e(LOG_TAG, "unexpected message " + msg.what);
+                        break;
+                }
+            }
+        };
+        loadPreferences();
+    }
+
+    /**
+     * all listeners share one thread, so recreating a service does not leak
+     * threads
+     */
+    private static synchronized HandlerThread getThread() {
+        if (thread == null) {
+            thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+        }
+        return thread;
+    }
+
+    /**
+     * (re)load the matching and thinning settings
+     */
+    public void loadPreferences() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final long tolerance = Preferences.getAsLong(preferences, Preferences.signalMatchTolerance, 1000);
+        final boolean interpolate = preferences.getBoolean(Preferences.signalMatchInterpolate, false);
+        final long minDistance = Preferences.getAsLong(preferences, Preferences.thinMinDistance, 0);
+        final long minSignalDelta = Preferences.getAsLong(preferences, Preferences.thinMinSignalDelta, 1);
+        final long thinTolerance = Preferences.getAsLong(preferences, Preferences.thinTolerance, 0);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                matcher.configure(tolerance, interpolate);
+                thinning.configure(minDistance, (int) minSignalDelta, thinTolerance);
+                Log.d(LOG_TAG, "signal match tolerance: " + tolerance + "ms, interpolate: " + interpolate
+                        + ", thinning: " + minDistance + "m, " + minSignalDelta + "asu, " + thinTolerance + "m");
+            }
+        });
     }
 
     // private void networkInfo() {
@@ -79,12 +239,104 @@ public class DataListener extends PhoneStateListener implements LocationListener
     // Log.i(LOG_TAG, "carrier: " + carrier);
     // }
 
-    @Override
-    public void onLocationChanged(Location location) {
+    /**
+     * Attach a source. The signal strength is received while any source is
+     * attached.
+     */
+    public synchronized void attach(int source) {
+        boolean listening = isListening();
+        attached |= 1 << source;
+        updateSubscription(listening);
+    }
+
+    public synchronized void detach(int source) {
+        boolean listening = isListening();
+        attached &= ~(1 << source);
+        updateSubscription(listening);
+    }
+
+    /**
+     * Set the listener of the signal changes, null removes it. The signal
+     * strength is received while a listener is set, even if no source is
+     * attached.
+     */
+    public synchronized void setSignalListener(SignalListener listener) {
+        boolean listening = isListening();
+        signalListener = listener;
+        updateSubscription(listening);
+    }
+
+    private boolean isListening() {
+        return attached != 0 || signalListener != null;
+    }
+
+    /**
+     * @param listening if the subscription was active before the change
+     */
+    private void updateSubscription(boolean listening) {
+        if (isListening() != listening) {
+            telephonyManager.listen(this, listening ? PhoneStateListener.LISTEN_NONE
+                    : PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+        }
+    }
+
+    /**
+     * @return the listener that passes the fixes of the source to
+     *         {@link #onLocationChanged(Location, int)}
+     */
+    public synchronized LocationListener listenerFor(final int source) {
+        if (listeners[source] == null) {
+            listeners[source] = new LocationListener() {
+                @Override
+                public void onLocationChanged(Location location) {
+                    DataListener.this.onLocationChanged(location, source);
+                }
+
+                @Override
+                public void onStatusChanged(String provider, int status, Bundle extras) {
+                }
+
+                @Override
+                public void onProviderEnabled(String provider) {
+                }
+
+                @Override
+                public void onProviderDisabled(String provider) {
+                }
+            };
+        }
+        return listeners[source];
+    }
+
+    /**
+     * @param source the source of the fix, see {@link #SOURCE_ACTIVE}
+     */
+    public void onLocationChanged(Location location, int source) {
         if (location == null) {
             Log.i(LOG_TAG, "null location received, ignore.");
             return;
         }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            int n = dropped.incrementAndGet();
+            Log.w(LOG_TAG, "ingestion is behind, location dropped (" + n + " so far)");
+            return;
+        }
+        // the satellites of this fix, the status may change until it is matched
+        handler.obtainMessage(LOCATION, source, satelliteSummary, location).sendToTarget();
+    }
+
+    /**
+     * filter and match stage
+     *
+     * @param satelliteSummary see {@link SatelliteSummary}, when the fix was
+     *            received
+     */
+    private void ingest(Location location, int source, int satelliteSummary) {
+        if (isDuplicate(location)) {
+            Log.d(LOG_TAG, "duplicate " + location.getProvider() + " location from " + SOURCE_NAMES[source]);
+            return;
+        }
         if (MobileStatusUtils.isAirplaneModeOn(context)) {
             Log.i(LOG_TAG, "we are in airplane mode, ignore.");
             return;
@@ -99,99 +351,144 @@ public class DataListener extends PhoneStateListener implements LocationListener
             return;
         }
 
-        // signal information might be younger than the location
-        SignalStrength signal = findSignalFor(location.getTime());
-        if (signal == null) {
-            return; // well, without signal information all this is rather useless
-        }
+        // signal information might be younger than the location, the fix is
+        // held until the matcher can decide
+        // the tag keeps the source in the low byte and the summary above
+        long tag = (satelliteSummary & 0xFFFFFFFFL) << 8 | source;
+        schedule(matcher.offer(location, tag, System.currentTimeMillis()));
+    }
 
+    /**
+     * enrich and persist stage
+     */
+    private void save(Thinning.Point point) {
         // keep roaming in mind!
         String carrier = telephonyManager.getNetworkOperatorName();
-        db.save(location, signal, satellitesInFix, carrier, androidRelease,
-                manufacturer, model, device, osVersion);
+        // unchanged reports are not stored again
+        Neighbors n = neighbors;
+        Neighbors changed = n == savedNeighbors ? null : n;
+        savedNeighbors = n;
+        // looked up per row, a closed instance is replaced by a new one
+        DbHandler.get(context).save(point.location, point.source, point.signalStrength, point.signalDelta, point.satelliteSummary,
+                point.signal, changed, carrier,
+                androidRelease, manufacturer, model, device, osVersion);
     }
 
     /**
-     * Find most recent signal that is younger than the age og the location.
-     * <p/>
-     * S9 = Signal at timestamp 9, L7.5 = Location at 7.5</br>
-     * S9 S8 L7.5 S7 S6 S5</br>
-     * Find first signal that is younger than the age of the location</br>
-     * Would be S7 in this case.
-     *
-     * @param timestamp of the location
-     * @return the SignalStrength if one was found, null otherwise.
+     * @return true if a fix with the same time and provider was received
+     *         before, otherwise the fix is remembered
      */
-    private SignalStrength findSignalFor(long timestamp) {
-        for (SignalEntry entry : signalList) {
-            if (timestamp > entry.time) {
-                return entry.signal;
+    private boolean isDuplicate(Location location) {
+        long time = location.getTime();
+        String provider = location.getProvider();
+        for (int i = 0; i < RECENT; i++) {
+            if (recentTimes[i] == time && provider != null && provider.equals(recentProviders[i])) {
+                return true;
             }
         }
-        return null;
+        recentTimes[recentNext] = time;
+        recentProviders[recentNext] = provider;
+        recentNext = (recentNext + 1) % RECENT;
+        return false;
     }
 
-    @Override
-    public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-        signalList.addFirst(new SignalEntry(signalStrength));
-        while (signalList.size() > signalListMaxLength) {
-            signalList.removeLast();
-        }
-        // check if the cell tower report is available
-        List<NeighboringCellInfo> cellInfos = telephonyManager.getNeighboringCellInfo();
-        if (cellInfos != null && cellInfos.size() > 0) {
-            for (NeighboringCellInfo cellInfo : cellInfos) {
-                // signal is type specific, would have to check it
-                // see https://developer.android.com/reference/android/telephony/NeighboringCellInfo.html#getRssi%28%29
-                // see https://en.wikipedia.org/wiki/Mobile_phone_signal#ASU
-                switch (cellInfo.getNetworkType()) {
-                    case TelephonyManager.NETWORK_TYPE_UMTS:
-                    case TelephonyManager.NETWORK_TYPE_HSDPA:
-                    case TelephonyManager.NETWORK_TYPE_HSUPA:
-                    case TelephonyManager.NETWORK_TYPE_HSPA:
-                        android.util.Log.d("SS/CellInfo/UMTS", "Psc: " + cellInfo.getPsc() + ", Signal " + (cellInfo.getRssi() - 116) + "dbm");
-                        break;
-                    default:
-                        // Not sure what to do if it's not GSM *sigh*
-                        android.util.Log.d("SS/CellInfo/GSM", "Cid: " + cellInfo.getCid() + ", Lac: " + cellInfo.getLac() + ", Signal " + (-113 + 2*cellInfo.getRssi()) + "dbm");
-                }
-            }
-        }
+    private void update() {
+        schedule(matcher.update(System.currentTimeMillis()));
     }
 
-    @Override
-    public void onProviderDisabled(String provider) {
+    private void schedule(long deadline) {
+        handler.removeMessages(UPDATE);
+        if (deadline != Long.MAX_VALUE) {
+            handler.sendEmptyMessageDelayed(UPDATE, Math.max(0, deadline - System.currentTimeMillis()));
+        }
     }
 
-    @Override
-    public void onProviderEnabled(String provider) {
+    private void pollNeighbors() {
+        long now = System.currentTimeMillis();
+        if (Math.abs(now - neighborsPolled) < NEIGHBORS_INTERVAL) {
+            return;
+        }
+        neighborsPolled = now;
+        // the rssi is type specific (ASU), it is stored as reported, see
+        // https://developer.android.com/reference/android/telephony/NeighboringCellInfo.html#getRssi%28%29
+        Neighbors n = Neighbors.of(telephonyManager.getNeighboringCellInfo());
+        if (!n.sameAs(neighbors)) {
+            neighbors = n;
+        }
     }
 
-    @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {
+    /**
+     * Save the held fixes with the signals known so far, e.g. when the
+     * listener is removed. Blocks until the fixes are queued for the db, call
+     * {@link DbHandler#flush()} afterwards to wait until they are written.
+     */
+    public void flush() {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                handler.removeMessages(UPDATE);
+                matcher.clear(System.currentTimeMillis());
+                thinning.flush();
+                Log.d(LOG_TAG, "signal matches: " + matcher.getStats() + ", thinning: " + thinning.getStats()
+                        + ", dropped while busy: " + dropped.get());
+            }
+        };
+        if (Looper.myLooper() == handler.getLooper()) {
+            task.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
-    public void onGpsStatusChanged(int i) {
-        int satellites = 0;
-        int satellitesInFix = 0;
-        int timetofix = locationManager.getGpsStatus(null).getTimeToFirstFix();
-        for (GpsSatellite sat : locationManager.getGpsStatus(null).getSatellites()) {
-            if (sat.usedInFix()) {
-                satellitesInFix++;
-            }
-            satellites++;
+    public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+        long now = System.currentTimeMillis();
+        signals.add(now, signalStrength);
+        // held fixes might be decided now, pending events are coalesced
+        if (!handler.hasMessages(SIGNAL)) {
+            handler.sendEmptyMessage(SIGNAL);
+        }
+        SignalListener listener;
+        synchronized (this) {
+            listener = signalListener;
+        }
+        if (listener != null) {
+            listener.onSignalChanged(signalStrength.getGsmSignalStrength(), now);
         }
-        Log.i(LOG_TAG, "Time to first fix = " + timetofix + "ms, Satellites: " + satellites + ", In last fix: " + satellitesInFix);
-        this.satellitesInFix = satellitesInFix;
     }
 
-    class SignalEntry {
-        final long time = System.currentTimeMillis();
-        final SignalStrength signal;
-
-        public SignalEntry(SignalStrength s) {
-            this.signal = s;
+    @Override
+    public void onGpsStatusChanged(int event) {
+        switch (event) {
+            case GpsStatus.GPS_EVENT_SATELLITE_STATUS:
+                // fires several times per second, the status object is reused
+                gpsStatus = locationManager.getGpsStatus(gpsStatus);
+                satelliteSummary = SatelliteSummary.of(gpsStatus);
+                break;
+            case GpsStatus.GPS_EVENT_FIRST_FIX:
+                gpsStatus = locationManager.getGpsStatus(gpsStatus);
+                Log.i(LOG_TAG, "Time to first fix = " + gpsStatus.getTimeToFirstFix() + "ms");
+                break;
+            case GpsStatus.GPS_EVENT_STOPPED:
+                satelliteSummary = 0;
+                break;
+            default:
+                break;
         }
     }
 }
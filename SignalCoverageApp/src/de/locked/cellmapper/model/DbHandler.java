@@ -1,18 +1,23 @@
 package de.locked.cellmapper.model;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.location.Location;
-import android.telephony.SignalStrength;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class DbHandler extends SQLiteOpenHelper {
     public static final String LOG_TAG = DbHandler.class.getName();
@@ -20,81 +25,132 @@ public class DbHandler extends SQLiteOpenHelper {
     public static final String TABLE = "Base";
 
     private static final SimpleDateFormat sdf = new SimpleDateFormat("y-MM-dd HH:mm:ss", Locale.US);
-    private static final int DATABASE_VERSION = 6;
+    private static final int DATABASE_VERSION = 18;
+    // up to this many grid rows are looked up as separate tile ranges
+    private static final int MAX_TILE_RANGES = 32;
+    // readers that may be open at the same time, each uses its own connection
+    private static final int READERS = 3;
+    // max wait for a free reader
+    private static final long READER_TIMEOUT = 30; // s
+    // delay of maintenance tasks while readers are open
+    private static final long MAINTENANCE_RETRY = 5000; // ms
 
     private static DbHandler instance = null;
-    private int writecount = 0;
+    private final Sessions sessions;
+    private final Partitions partitions;
+    private final MeasurementWriter writer;
+    // permits of the open readers, maintenance takes all of them
+    private final Semaphore readers = new Semaphore(READERS);
+    // cached values, null if they must be reloaded
+    private TableStats stats;
+    private String lastRow;
+    // progress of a running migration, -1 if there is none
+    private int migration = -1;
+    // the db was created by this instance, see onOpen
+    private boolean created = false;
 
+    /**
+     * @return the db of the process
+     */
     public synchronized static DbHandler get(Context context) {
         if (instance == null) {
-            instance = new DbHandler(context);
+            instance = new DbHandler(context.getApplicationContext());
         }
         return instance;
     }
 
     private DbHandler(Context context) {
         super(context, DB_NAME, null, DATABASE_VERSION);
+        sessions = new Sessions(this);
+        partitions = new Partitions();
+        writer = new MeasurementWriter(this, sessions, partitions);
     }
 
+    /**
+     * @return the local date and time of the youngest row
+     */
     public String getLastEntryString() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT datetime(time, 'unixepoch', 'localtime') AS LastEntry FROM " + TABLE + " ORDER BY time DESC LIMIT 1", null);
-
-        String result = "";
-        if (cursor.moveToFirst()) {
-            result = cursor.getString(0);
+        TableStats stats = getStats();
+        if (stats.rows == 0) {
+            return "";
+        }
+        synchronized (sdf) {
+            return sdf.format(new Date(stats.maxTime));
         }
-        cursor.close();
-        return result;
     }
 
-	public void save(Location location, SignalStrength signal, int satellites,
-			String carrier, String androidRelease, 
-			String manufacturer, String model, String device, String osVersion) {
-        int timeSec = (int) (location.getTime() / 1000);
-        carrier = carrier == null ? "" : carrier;
+    /**
+     * Queues the measurement for writing. The row is written asynchronously,
+     * call {@link #flush()} to force pending rows to the db.
+     *
+     * @param source see {@link DataListener#SOURCE_ACTIVE}
+     * @param signalStrength the GSM signal strength in ASU
+     * @param signalDelta time of the signal minus time of the fix in ms
+     * @param satelliteSummary see {@link SatelliteSummary}
+     * @param signal all values of the signal, see {@link SignalCodec}
+     * @param neighbors the neighboring cells, null if unchanged since the last
+     *            row
+     */
+    public void save(Location location, int source, int signalStrength, long signalDelta, int satelliteSummary,
+                     long signal, Neighbors neighbors, String carrier, String androidRelease,
+                     String manufacturer, String model, String device, String osVersion) {
+        Measurement m = new Measurement();
+        m.time = location.getTime();
+        m.accuracy = location.getAccuracy();
+        m.altitude = location.getAltitude();
+        m.satellites = SatelliteSummary.inFix(satelliteSummary);
+        m.satelliteSummary = satelliteSummary;
+        m.source = source;
+        m.latitude = location.getLatitude();
+        m.longitude = location.getLongitude();
+        m.speed = location.getSpeed();
+        m.signalStrength = signalStrength;
+        m.signalDelta = (int) signalDelta;
+        m.signal = signal;
+        m.neighbors = neighbors;
+        m.carrier = carrier == null ? "" : carrier;
+        m.androidRelease = androidRelease;
+        m.manufacturer = manufacturer;
+        m.model = model;
+        m.device = device;
+        m.osVersion = osVersion;
 
         // /data/data/de.locked.cellmapper/databases/CellMapper
-        // sqlite> select datetime(time, 'unixepoch', 'localtime') FROM Base
+        // sqlite> select datetime(time / 1000, 'unixepoch', 'localtime') FROM Base
         // ORDER BY TIME DESC LIMIT 4;
-        SQLiteDatabase db = getWritableDatabase();
-        try {
-            db.beginTransaction();
-            Log.i(LOG_TAG, "writing data to db (location+signal) at time " + sdf.format(new Date(timeSec * 1000L)));
-
-            ContentValues values = new ContentValues();
-            values.put("time", timeSec);
-            values.put("accuracy", location.getAccuracy());
-            values.put("altitude", location.getAltitude());
-            values.put("satellites", satellites);
-            values.put("latitude", location.getLatitude());
-            values.put("longitude", location.getLongitude());
-            values.put("speed", location.getSpeed());
-            values.put("signalStrength", signal.getGsmSignalStrength());
-            values.put("carrier", carrier);
-            values.put("androidrelease", androidRelease);
-            values.put("manufacturer", manufacturer);
-            values.put("model", model);
-            values.put("device", device);
-            values.put("osVersion", osVersion);
-            long success = db.replace(TABLE, null, values);
-
-            Log.i(LOG_TAG, "transaction successfull: " + success);
-            db.setTransactionSuccessful();
-        } catch (SQLException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-        } finally {
-            db.endTransaction();
-        }
+        Log.d(LOG_TAG, "queueing data (location+signal) at time " + sdf.format(new Date(m.time)));
+        writer.enqueue(m);
+    }
+
+    /**
+     * write all queued measurements to the db
+     */
+    public void flush() {
+        writer.flush();
+    }
+
+    /**
+     * write all queued measurements to the db without waiting for them
+     */
+    public void flushLater() {
+        writer.flushLater();
+    }
 
-        if (writecount++ % 100 == 0) {
-            SQLiteDatabase.releaseMemory();
+    /**
+     * @return all columns of the youngest row, one per line
+     */
+    public synchronized String getLastRowAsString() {
+        if (lastRow != null) {
+            return lastRow;
         }
-	}
 
-    public String getLastRowAsString() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE + " ORDER BY time DESC LIMIT 1", null);
+        TableStats stats = getStats();
+        if (stats.lastTable == null) {
+            return "";
+        }
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT d.*, " + Sessions.COLUMNS + " FROM " + stats.lastTable //
+                + " d LEFT JOIN " + Sessions.TABLE + " s ON d.session = s.id WHERE d.time = ?",
+                new String[]{Long.toString(stats.maxTime)});
 
         StringBuilder sb = new StringBuilder(64);
         if (cursor.moveToFirst()) {
@@ -108,48 +164,338 @@ public class DbHandler extends SQLiteOpenHelper {
             }
         }
         cursor.close();
-        return sb.toString();
+        lastRow = sb.toString();
+        return lastRow;
     }
 
     public int getRows() {
-        Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
-        int count = 0;
-        if (cursor.moveToFirst()) {
-            count = cursor.getInt(0);
+        return getStats().rows;
+    }
+
+    /**
+     * @param after time in ms
+     * @return the number of rows with a time greater than after
+     */
+    public int getRows(long after) {
+        TableStats stats = getStats();
+        if (stats.rows == 0 || after < stats.minTime) {
+            return stats.rows;
+        }
+        if (after >= stats.maxTime) {
+            return 0;
+        }
+
+        SQLiteDatabase db = getReadableDatabase();
+        return Partitions.countAfter(db, after) + TableStats.archivedAfter(db, after);
+    }
+
+    /**
+     * @return the cached stats, loaded from the db if the data changed
+     */
+    private synchronized TableStats getStats() {
+        if (stats == null) {
+            stats = TableStats.load(getReadableDatabase());
+        }
+        return stats;
+    }
+
+    /**
+     * drop the cached stats, must be called after the data was modified
+     */
+    synchronized void invalidateStats() {
+        stats = null;
+        lastRow = null;
+    }
+
+    /**
+     * @return a reader that streams all rows ordered by time
+     * @throws IOException if no reader was free in time
+     */
+    public MeasurementReader readAll() throws IOException {
+        return read(Long.MIN_VALUE);
+    }
+
+    /**
+     * @param after time in ms
+     * @return a reader that streams all rows with a time greater than after,
+     * ordered by time. Waits up to {@link #READER_TIMEOUT} s if too many
+     * readers are open, the reader must be closed.
+     * @throws IOException if no reader was free in time
+     */
+    public MeasurementReader read(long after) throws IOException {
+        try {
+            if (!readers.tryAcquire(READER_TIMEOUT, TimeUnit.SECONDS)) {
+                throw new IOException("no free reader after " + READER_TIMEOUT + "s, too many exports are running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a reader");
+        }
+        try {
+            return new MeasurementReader(getReadableDatabase(), sessions, after, getStats().maxTime, readers);
+        } catch (RuntimeException e) {
+            readers.release();
+            throw e;
         }
-        cursor.close();
-        return count;
     }
 
-    public Cursor getAll() {
-        return getReadableDatabase().rawQuery("SELECT * FROM " + TABLE + " ORDER BY time ASC", null);
+    /**
+     * Run the task on the writer thread as soon as no reader is open. Tasks
+     * that move or delete rows must use this instead of writer.post(..), so
+     * open readers keep a consistent view. New rows are still written while
+     * readers are open.
+     */
+    private void maintain(final Runnable task) {
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!readers.tryAcquire(READERS)) {
+                    writer.postDelayed(this, MAINTENANCE_RETRY);
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    readers.release(READERS);
+                }
+            }
+        });
+    }
+
+    /**
+     * one step of a maintenance task, see {@link #maintainInSteps(Step)}
+     */
+    private interface Step {
+        /**
+         * @return true if there is more to do
+         */
+        boolean run(SQLiteDatabase db);
+    }
+
+    /**
+     * Like {@link #maintain(Runnable)}, but each step runs in its own message
+     * on the writer thread, so queued rows and flush() callers only wait for
+     * one step instead of the whole task.
+     */
+    private void maintainInSteps(final Step step) {
+        maintain(new Runnable() {
+            @Override
+            public void run() {
+                if (step.run(getWritableDatabase())) {
+                    maintainInSteps(step);
+                }
+            }
+        });
+    }
+
+    /**
+     * Move rows older than the given age into the compressed archive. Runs
+     * asynchronously on the writer thread, one block per message.
+     *
+     * @param days maximum age of rows in the partitions, &lt;= 0 to disable
+     */
+    public void archive(int days) {
+        if (days <= 0) {
+            return;
+        }
+        final long before = System.currentTimeMillis() - days * 24L * 3600 * 1000;
+        maintainInSteps(new Step() {
+            private final ArchiveBlock block = new ArchiveBlock();
+
+            @Override
+            public boolean run(SQLiteDatabase db) {
+                // the archive must only contain rows older than the partitions
+                if (Migrations.hasPending(db)) {
+                    Log.i(LOG_TAG, "skipping archive during migration");
+                    return false;
+                }
+                if (Archive.archiveStep(db, before, block) == 0) {
+                    return false;
+                }
+                invalidateStats();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Delete old rows and release the free space. Runs asynchronously on the
+     * writer thread, one batch per message, rows are deleted in small batches and the file shrinks in
+     * incremental vacuum steps if the db was created with incremental auto
+     * vacuum.
+     *
+     * @param days maximum age of rows, &lt;= 0 to keep them forever
+     * @param acknowledged only rows up to this time in ms are deleted by age,
+     *            e.g. the youngest row acknowledged by the upload server
+     * @param maxMb maximum size of the db, the oldest rows are deleted beyond
+     *            that, &lt;= 0 for no limit
+     */
+    public void retain(int days, long acknowledged, int maxMb) {
+        long limit = days <= 0 ? Long.MIN_VALUE : System.currentTimeMillis() - days * 24L * 3600 * 1000;
+        final long before = acknowledged < limit ? acknowledged + 1 : limit;
+        final long maxBytes = maxMb <= 0 ? Long.MAX_VALUE : maxMb * 1024L * 1024;
+        if (before == Long.MIN_VALUE && maxBytes == Long.MAX_VALUE) {
+            return;
+        }
+        maintainInSteps(new Step() {
+            // deleting by age comes first
+            private boolean aged = before == Long.MIN_VALUE;
+
+            @Override
+            public boolean run(SQLiteDatabase db) {
+                if (Migrations.hasPending(db)) {
+                    Log.i(LOG_TAG, "skipping retention during migration");
+                    return false;
+                }
+                if (!aged) {
+                    aged = !Retention.deleteBeforeStep(db, partitions, before);
+                    invalidateStats();
+                    return true;
+                }
+                if (maxBytes < Long.MAX_VALUE && Retention.capStep(db, partitions, maxBytes)) {
+                    invalidateStats();
+                    return true;
+                }
+                vacuum();
+                return false;
+            }
+        });
+    }
+
+    /**
+     * release free pages, one step per message on the writer thread
+     */
+    private void vacuum() {
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                if (Retention.vacuumStep(getWritableDatabase())) {
+                    writer.post(this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Find rows inside the bounding box using the tile index. Archived rows are
+     * not included.
+     *
+     * @param limit maximum number of rows to return
+     * @return at most limit rows in no particular order
+     */
+    public List<Measurement> getInBox(double minLat, double minLon, double maxLat, double maxLon, int limit) {
+        List<Measurement> result = new ArrayList<Measurement>();
+        Cursor cursor = queryBox(minLat, minLon, maxLat, maxLon);
+        try {
+            while (result.size() < limit && cursor.moveToNext()) {
+                Measurement m = new Measurement();
+                MeasurementReader.read(cursor, m, sessions);
+                result.add(m);
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Find rows within the given distance using the tile index. Archived rows
+     * are not included.
+     *
+     * @param radius in meters
+     * @param limit maximum number of rows to return
+     * @return at most limit rows in no particular order
+     */
+    public List<Measurement> getInRadius(double latitude, double longitude, float radius, int limit) {
+        double dLat = GeoGrid.latitudeDegrees(radius);
+        double dLon = GeoGrid.longitudeDegrees(radius, latitude);
+
+        List<Measurement> result = new ArrayList<Measurement>();
+        float[] distance = new float[1];
+        Measurement m = new Measurement();
+        Cursor cursor = queryBox(latitude - dLat, longitude - dLon, latitude + dLat, longitude + dLon);
+        try {
+            while (result.size() < limit && cursor.moveToNext()) {
+                MeasurementReader.read(cursor, m, sessions);
+                Location.distanceBetween(latitude, longitude, m.latitude, m.longitude, distance);
+                if (distance[0] <= radius) {
+                    result.add(m);
+                    m = new Measurement();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private Cursor queryBox(double minLat, double minLon, double maxLat, double maxLon) {
+        int minRow = GeoGrid.row(minLat);
+        int maxRow = GeoGrid.row(maxLat);
+        int minCol = GeoGrid.column(minLon);
+        int maxCol = GeoGrid.column(maxLon);
+
+        // one tile range per grid row, or a single range for huge boxes
+        StringBuilder where = new StringBuilder("(");
+        if (maxRow - minRow < MAX_TILE_RANGES) {
+            for (int row = minRow; row <= maxRow; row++) {
+                if (row > minRow) {
+                    where.append(" OR ");
+                }
+                where.append("tile BETWEEN ").append(row * GeoGrid.COLUMNS + minCol) //
+                        .append(" AND ").append(row * GeoGrid.COLUMNS + maxCol);
+            }
+        } else {
+            where.append("tile BETWEEN ").append(minRow * GeoGrid.COLUMNS + minCol) //
+                    .append(" AND ").append(maxRow * GeoGrid.COLUMNS + maxCol);
+        }
+        where.append(") AND latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?");
+
+        SQLiteDatabase db = getReadableDatabase();
+        List<String> tables = Partitions.all(db);
+        return db.rawQuery(Partitions.union(tables, MeasurementReader.COLUMNS, where.toString()), //
+                Partitions.args(tables, Double.toString(minLat), Double.toString(maxLat), //
+                        Double.toString(minLon), Double.toString(maxLon)));
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i(LOG_TAG, "create db");
-        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
-                // location
-                " time INT PRIMARY KEY, " + //
-                " accuracy REAL, " + //
-                " altitude REAL, " + //
-                " satellites INT, " + //
-                " latitude REAL, " + //
-                " longitude REAL," + //
-                " speed REAL, " + //
-                // signal
-                " signalStrength INT, " + //
-                " carrier TEXT, " + //
-                " androidRelease TEXT, " + //
-                " manufacturer TEXT, " + //
-        		" model TEXT, " + //
-                " device TEXT, " + //
-                " osVersion TEXT " + //
-                " );");
+        // the monthly partitions are created when rows are written
+        Partitions.create(db);
+        Sessions.create(db);
+        Archive.create(db);
+        Neighbors.create(db);
+        created = true;
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (created) {
+            // the new db is still empty, so the rebuild costs nothing. Existing
+            // dbs are not converted, their free pages are reused by new rows
+            created = false;
+            Retention.enableIncrementalVacuum(db);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+            // readers use their own connections and don't block the writer
+            db.enableWriteAheadLogging();
+        }
+        if (Migrations.hasPending(db)) {
+            migrate();
+        }
+    }
+
+    /**
+     * Write all queued rows and close the db. Blocks until the queued
+     * maintenance is done, so it must not be called from the main thread. The
+     * db is shared by the activity and the services and normally lives as long
+     * as the process.
+     */
     @Override
     public void close() {
+        writer.close();
         super.close();
         instance = null;
     }
@@ -161,19 +507,50 @@ public class DbHandler extends SQLiteOpenHelper {
             case 1:
             case 2:
             case 3:
-                // remove cdmaDbm, evdoDbm, evdoSnr
-                String cols = "time, accuracy, altitude, satellites, latitude, longitude, speed, signalStrength, carrier";
-                keep(db, cols);
+                // cdmaDbm, evdoDbm, evdoSnr are not copied by the rebuild
             case 4:
                 // add androidRelease
                 addColumn(db, "androidRelease");
             case 5:
-            case 6:
             	// add model specific stuff
                 addColumn(db, "manufacturer");
                 addColumn(db, "model");
                 addColumn(db, "device");
                 addColumn(db, "osVersion");
+            case 6:
+            case 7:
+            case 8:
+            case 9:
+                // spatial index (6), row statistics (7), session table (8)
+                // and time in ms (9), see Partitions for the key
+                rebuild(db, oldVersion);
+            case 10:
+                // cold storage for old rows
+                Archive.create(db);
+            case 11:
+                // monthly partitions, the data table keeps the older rows
+                db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_stats_insert");
+                db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_stats_delete");
+                db.execSQL("DROP TABLE IF EXISTS " + TableStats.LEGACY_TABLE);
+                Partitions.register(db, TABLE);
+            case 12:
+                // time between fix and signal
+                Partitions.addColumn(db, "signalDelta", "INT");
+            case 13:
+                // neighboring cells
+                Neighbors.create(db);
+            case 14:
+                // satellites in view and SNR
+                Partitions.addColumn(db, "satelliteSummary", "INT");
+            case 15:
+                // active or passive
+                Partitions.addColumn(db, "source", "INT");
+            case 16:
+                // all values of the signal
+                Partitions.addColumn(db, "signal", "INT");
+            case 17:
+                // neighbors keyed by the measurement
+                Neighbors.addMeasurement(db);
 
             default:
                 break;
@@ -191,22 +568,106 @@ public class DbHandler extends SQLiteOpenHelper {
         }
     }
 
-    private void keep(SQLiteDatabase db, String cols) {
-        Log.d(LOG_TAG, "delete all but those columns "+cols);
+    /**
+     * Replace the data table by an empty one with the current layout and
+     * register the migration of the old rows, see {@link Migrations}. The rows
+     * are moved after the upgrade on the writer thread.
+     */
+    private void rebuild(SQLiteDatabase db, int oldVersion) {
+        Log.d(LOG_TAG, "rebuild " + TABLE + " from version " + oldVersion);
+        String cols = "time, accuracy, altitude, satellites, latitude, longitude, speed, signalStrength, session, tile";
+        String source = Migrations.source(db, TABLE);
+        String session = "d.session";
+        String prepare = null;
+        if (oldVersion < 9) {
+            // create the sessions of each chunk before looking them up
+            Sessions.create(db);
+            session = Sessions.lookup("d");
+            prepare = "INSERT INTO " + Sessions.TABLE + " (" + Sessions.COLUMNS + ") SELECT DISTINCT "
+                    + Sessions.COLUMNS + " FROM " + source + " d WHERE d.time <= ? AND " + session + " IS NULL";
+        }
+        String tile = oldVersion < 7 ? GeoGrid.TILE_SQL : "d.tile";
+        String selection = "d.time * 1000, d.accuracy, d.altitude, d.satellites, d.latitude, d.longitude, d.speed, "
+                + "d.signalStrength, " + session + ", " + tile;
+
         db.beginTransaction();
         try {
-            db.execSQL("CREATE TEMPORARY TABLE t1_backup(" + cols + ") ");
-            db.execSQL("INSERT INTO t1_backup SELECT " + cols + " FROM " + TABLE);
-            db.execSQL("DROP TABLE " + TABLE);
-            db.execSQL("CREATE TABLE " + TABLE + "(" + cols + ", PRIMARY KEY (time))");
-            db.execSQL("INSERT INTO " + TABLE + " SELECT " + cols + " FROM t1_backup");
-            db.execSQL("DROP TABLE t1_backup");
+            // the old table must not touch the stats or keep the index name
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_stats_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_stats_delete");
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_rows_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_rows_delete");
+            db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_tile");
+            db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_time");
+            Migrations.register(db, TABLE, source, cols, selection, prepare);
+
+            Partitions.createTable(db, TABLE);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
 
+    /**
+     * Move the rows of pending migrations, one chunk per message on the writer
+     * thread so queued measurements are still written in between. A failed
+     * chunk, e.g. on a full disk, stops the migration, it continues from its
+     * checkpoint the next time the db is opened.
+     */
+    private void migrate() {
+        synchronized (this) {
+            if (migration >= 0) {
+                return;
+            }
+            migration = 0;
+        }
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                int progress;
+                try {
+                    progress = Migrations.step(getWritableDatabase());
+                } catch (SQLException e) {
+                    Log.e(LOG_TAG, "migration stopped", e);
+                    progress = -1;
+                }
+                invalidateStats();
+                synchronized (DbHandler.this) {
+                    migration = progress;
+                    if (progress < 0) {
+                        DbHandler.this.notifyAll();
+                        return;
+                    }
+                }
+                writer.post(this);
+            }
+        });
+    }
+
+    /**
+     * @return the progress of a running migration in percent, -1 if there is
+     *         none
+     */
+    public synchronized int getMigrationProgress() {
+        return migration;
+    }
+
+    /**
+     * Block until all rows of running migrations were moved or the migration
+     * stopped. Must not be called from the main thread.
+     */
+    public synchronized void awaitMigration() {
+        // opening the db starts pending migrations
+        getWritableDatabase();
+        try {
+            while (migration >= 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void finalize() throws Throwable {
         super.finalize();
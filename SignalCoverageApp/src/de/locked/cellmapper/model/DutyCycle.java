@@ -0,0 +1,234 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides how long the GPS is switched on, how often it is sampled and how
+ * long it sleeps in between. The configured values are the baseline, the
+ * adaptive policies change them from the observed speed, from the
+ * accelerometer and from how often the signal changes:
+ * <ul>
+ * <li>{@link #FIXED}: always the configured values</li>
+ * <li>{@link #BALANCED}: sample about every {@link #BALANCED_SPACING} m while
+ * moving, sleep shorter at high speed or when the signal changes often, and
+ * much longer while the phone lies still</li>
+ * <li>{@link #SAVER}: like balanced with a wider spacing and longer sleeps</li>
+ * </ul>
+ * The fixes per minute of GPS on-time are counted per policy, see
+ * {@link #getStats()}.
+ * <p/>
+ * Thread safe.
+ */
+public class DutyCycle {
+    public static final String FIXED = "fixed";
+    public static final String BALANCED = "balanced";
+    public static final String SAVER = "saver";
+    // target distance between two fixes in m
+    static final double BALANCED_SPACING = 25;
+    static final double SAVER_SPACING = 50;
+    // bounds of the adapted values
+    static final long MIN_INTERVAL = 1000; // ms
+    static final long MAX_SLEEP = 30 * 60 * 1000; // ms
+    // faster than this is fast, e.g. in a car
+    static final double FAST = 8; // m/s
+    // signal changes per minute that count as often
+    static final double SIGNAL_CHANGES = 4;
+    // the phone is stationary if the acceleration varied less than this ...
+    static final double STILL_DEVIATION = 0.2; // m/s^2
+    // ... for at least this long
+    static final long STILL_TIME = 30000; // ms
+    // weight of a new value in the moving averages
+    private static final double ALPHA = 0.2;
+
+    private String policy = BALANCED;
+    private long onTime = 30000; // ms
+    private long sleep = 10000; // ms
+    private long interval = 5000; // ms
+    // observations
+    private double speed = 0; // m/s
+    private Location lastLocation;
+    private double signalRate = 0; // changes per minute
+    private long lastSignal = 0;
+    private double acceleration = Double.NaN;
+    private double deviation = 0;
+    private long movedAt = 0;
+    // statistics per policy: fixes and GPS on-time in ms
+    private final Map<String, long[]> stats = new LinkedHashMap<String, long[]>();
+    private long gpsOnSince = 0;
+
+    /**
+     * @param onTime configured GPS on-time in ms
+     * @param sleep configured sleep time in ms
+     * @param interval configured time between fixes in ms
+     */
+    public synchronized void configure(String policy, long onTime, long sleep, long interval) {
+        this.policy = FIXED.equals(policy) || SAVER.equals(policy) ? policy : BALANCED;
+        this.onTime = onTime;
+        this.sleep = sleep;
+        this.interval = interval;
+    }
+
+    public synchronized String getPolicy() {
+        return policy;
+    }
+
+    /**
+     * a new fix was received while the GPS was on
+     */
+    public synchronized void onLocation(Location location) {
+        double s;
+        if (location.hasSpeed()) {
+            s = location.getSpeed();
+        } else if (lastLocation != null && location.getTime() > lastLocation.getTime()) {
+            s = location.distanceTo(lastLocation) * 1000d / (location.getTime() - lastLocation.getTime());
+        } else {
+            s = speed;
+        }
+        speed += ALPHA * (s - speed);
+        lastLocation = location;
+        stats(policy)[0]++;
+    }
+
+    /**
+     * the signal strength changed
+     *
+     * @param now time in ms
+     */
+    public synchronized void onSignalChange(long now) {
+        if (lastSignal > 0 && now > lastSignal) {
+            double rate = 60000d / (now - lastSignal);
+            signalRate += ALPHA * (rate - signalRate);
+        }
+        lastSignal = now;
+    }
+
+    /**
+     * @param magnitude length of the acceleration vector in m/s^2
+     * @param now time in ms
+     */
+    public synchronized void onAcceleration(double magnitude, long now) {
+        if (Double.isNaN(acceleration)) {
+            acceleration = magnitude;
+            movedAt = now;
+            return;
+        }
+        acceleration += ALPHA * (magnitude - acceleration);
+        deviation += ALPHA * (Math.abs(magnitude - acceleration) - deviation);
+        if (deviation > STILL_DEVIATION) {
+            movedAt = now;
+        }
+    }
+
+    /**
+     * @return true if the accelerometer reported no movement for
+     *         {@link #STILL_TIME}
+     */
+    public synchronized boolean isStationary(long now) {
+        return !Double.isNaN(acceleration) && now - movedAt >= STILL_TIME;
+    }
+
+    /**
+     * @param now time in ms
+     */
+    public synchronized void gpsOn(long now) {
+        if (gpsOnSince == 0) {
+            gpsOnSince = now;
+        }
+    }
+
+    /**
+     * @param now time in ms
+     */
+    public synchronized void gpsOff(long now) {
+        if (gpsOnSince > 0) {
+            stats(policy)[1] += Math.max(0, now - gpsOnSince);
+            gpsOnSince = 0;
+        }
+    }
+
+    /**
+     * @return how long the GPS stays on in ms
+     */
+    public synchronized long getOnTime(long now) {
+        if (!FIXED.equals(policy) && isStationary(now) && signalRate(now) < SIGNAL_CHANGES) {
+            // a few fixes are enough to notice that the phone moved
+            return Math.min(onTime, Math.max(3 * getInterval(now), 10000));
+        }
+        return onTime;
+    }
+
+    /**
+     * @return the time between fixes in ms while the GPS is on
+     */
+    public synchronized long getInterval(long now) {
+        if (FIXED.equals(policy) || speed <= 0) {
+            return interval;
+        }
+        double spacing = SAVER.equals(policy) ? SAVER_SPACING : BALANCED_SPACING;
+        long adapted = (long) (spacing / speed * 1000);
+        // a configured interval below the bound, e.g. on drive tests, is kept
+        return Math.max(Math.min(MIN_INTERVAL, interval), Math.min(interval, adapted));
+    }
+
+    /**
+     * @return how long the GPS sleeps in ms
+     */
+    public synchronized long getSleepTime(long now) {
+        if (FIXED.equals(policy)) {
+            return sleep;
+        }
+        boolean saver = SAVER.equals(policy);
+        long adapted = sleep;
+        if (isStationary(now) && signalRate(now) < SIGNAL_CHANGES) {
+            adapted = sleep * (saver ? 16 : 6);
+        } else {
+            if (speed > FAST && !saver) {
+                adapted /= 2;
+            }
+            if (signalRate(now) >= SIGNAL_CHANGES) {
+                adapted /= 2;
+            }
+        }
+        return Math.max(MIN_INTERVAL, Math.min(MAX_SLEEP, adapted));
+    }
+
+    /**
+     * @return the signal changes per minute, decays while there are none
+     */
+    private double signalRate(long now) {
+        if (lastSignal == 0 || now <= lastSignal) {
+            return signalRate;
+        }
+        return Math.min(signalRate, 60000d / (now - lastSignal));
+    }
+
+    private long[] stats(String policy) {
+        long[] s = stats.get(policy);
+        if (s == null) {
+            s = new long[2];
+            stats.put(policy, s);
+        }
+        return s;
+    }
+
+    /**
+     * @return fixes per minute of GPS on-time per policy
+     */
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder(64);
+        for (Map.Entry<String, long[]> e : stats.entrySet()) {
+            long fixes = e.getValue()[0];
+            long minutes = e.getValue()[1] / 60000;
+            sb.append(e.getKey()).append(": ").append(fixes).append(" fixes in ").append(minutes).append(" GPS min");
+            if (e.getValue()[1] > 0) {
+                sb.append(String.format(Locale.US, " (%.1f/min)", fixes * 60000d / e.getValue()[1]));
+            }
+            sb.append("; ");
+        }
+        return sb.toString();
+    }
+}
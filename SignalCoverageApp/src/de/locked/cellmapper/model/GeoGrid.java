@@ -0,0 +1,57 @@
+package de.locked.cellmapper.model;
+
+/**
+ * Fixed lat/lon grid used as spatial index. Each point is mapped to a tile
+ * number <code>row * COLUMNS + column</code>, so all tiles of one grid row form
+ * a continuous range that can be looked up in the tile index.
+ */
+public class GeoGrid {
+    // tiles per degree, 100 is roughly 1.1km in latitude
+    static final int RESOLUTION = 100;
+    static final int ROWS = 180 * RESOLUTION;
+    static final int COLUMNS = 360 * RESOLUTION;
+    // meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 111320;
+
+    /**
+     * SQL expression that computes the tile from the latitude and longitude
+     * columns, equivalent to {@link #tile(double, double)}
+     */
+    static final String TILE_SQL = "MIN(CAST((latitude + 90) * " + RESOLUTION + " AS INTEGER), " + (ROWS - 1) + ") * "
+            + COLUMNS + " + MIN(CAST((longitude + 180) * " + RESOLUTION + " AS INTEGER), " + (COLUMNS - 1) + ")";
+
+    private GeoGrid() {
+    }
+
+    public static int tile(double latitude, double longitude) {
+        return row(latitude) * COLUMNS + column(longitude);
+    }
+
+    static int row(double latitude) {
+        return clamp((int) Math.floor((latitude + 90) * RESOLUTION), ROWS - 1);
+    }
+
+    static int column(double longitude) {
+        return clamp((int) Math.floor((longitude + 180) * RESOLUTION), COLUMNS - 1);
+    }
+
+    /**
+     * @return the latitude span in degrees of the given distance
+     */
+    static double latitudeDegrees(double meters) {
+        return meters / METERS_PER_DEGREE;
+    }
+
+    /**
+     * @return the longitude span in degrees of the given distance at the given
+     *         latitude
+     */
+    static double longitudeDegrees(double meters, double latitude) {
+        double cos = Math.cos(Math.toRadians(latitude));
+        return cos < 1e-6 ? 360 : meters / (METERS_PER_DEGREE * cos);
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+}
@@ -0,0 +1,179 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * State machine of the active listener:
+ * <pre>
+ * IDLE --start--&gt; ACQUIRING --fix--&gt; SAMPLING --timer--&gt; SLEEPING
+ *                     |                                 |
+ *                     +--timer (no fix)--&gt; SLEEPING    +--timer/wake--&gt; ACQUIRING
+ * </pre>
+ * The GPS is on while acquiring and sampling. All times come from the
+ * {@link DutyCycle}. A single timer drives the transitions and the clock is
+ * injected, so the machine can be run on a fake clock.
+ * <p/>
+ * Not thread safe, all calls must be made from the same thread.
+ */
+public class ListenerCycle {
+    private static final String LOG_TAG = ListenerCycle.class.getName();
+    public static final int IDLE = 0;
+    public static final int ACQUIRING = 1;
+    public static final int SAMPLING = 2;
+    public static final int SLEEPING = 3;
+    private static final String[] NAMES = {"IDLE", "ACQUIRING", "SAMPLING", "SLEEPING"};
+
+    /**
+     * the clock and the single timer of the machine
+     */
+    public interface Timer {
+        /**
+         * @return the current time in ms
+         */
+        long now();
+
+        /**
+         * call {@link ListenerCycle#onTimer()} after the delay in ms, replaces
+         * a pending call
+         */
+        void schedule(long delay);
+
+        void cancel();
+    }
+
+    /**
+     * switches the location updates on and off
+     */
+    public interface Gps {
+        /**
+         * @param interval time between fixes in ms
+         */
+        void start(long interval);
+
+        void stop();
+    }
+
+    private final DutyCycle dutyCycle;
+    private final Timer timer;
+    private final Gps gps;
+    private int state = IDLE;
+    // the sleep was chosen because the phone did not move
+    private boolean sleepingStill;
+
+    public ListenerCycle(DutyCycle dutyCycle, Timer timer, Gps gps) {
+        this.dutyCycle = dutyCycle;
+        this.timer = timer;
+        this.gps = gps;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * start a cycle, does nothing if the machine is running
+     */
+    public void start() {
+        if (state == IDLE) {
+            acquire();
+        }
+    }
+
+    /**
+     * switch the GPS off and stop all timers
+     */
+    public void stop() {
+        timer.cancel();
+        if (state == ACQUIRING || state == SAMPLING) {
+            gps.stop();
+            dutyCycle.gpsOff(timer.now());
+        }
+        setState(IDLE);
+    }
+
+    /**
+     * a fix of the GPS was received
+     */
+    public void onFix(Location location) {
+        if (state == ACQUIRING) {
+            setState(SAMPLING);
+            timer.schedule(dutyCycle.getOnTime(timer.now()));
+        }
+        if (state == SAMPLING) {
+            dutyCycle.onLocation(location);
+        }
+    }
+
+    /**
+     * the timer set by the last transition expired
+     */
+    public void onTimer() {
+        switch (state) {
+            case ACQUIRING:
+                Log.d(LOG_TAG, "no fix received");
+                sleep();
+                break;
+            case SAMPLING:
+                sleep();
+                break;
+            case SLEEPING:
+                acquire();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * end the sleep early, e.g. because the signal changed
+     *
+     * @return true if the machine was sleeping
+     */
+    public boolean wake() {
+        if (state == SLEEPING) {
+            acquire();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * end a sleep that was chosen because the phone did not move if it moves
+     * again
+     */
+    public void onMotion() {
+        if (state == SLEEPING && sleepingStill && !dutyCycle.isStationary(timer.now())) {
+            Log.d(LOG_TAG, "moving again");
+            acquire();
+        }
+    }
+
+    private void acquire() {
+        long now = timer.now();
+        long interval = dutyCycle.getInterval(now);
+        setState(ACQUIRING);
+        gps.start(interval);
+        dutyCycle.gpsOn(now);
+        // wait as long for the first fix as the GPS would be on for sampling
+        timer.schedule(dutyCycle.getOnTime(now));
+    }
+
+    private void sleep() {
+        long now = timer.now();
+        gps.stop();
+        dutyCycle.gpsOff(now);
+        long sleep = dutyCycle.getSleepTime(now);
+        sleepingStill = dutyCycle.isStationary(now);
+        setState(SLEEPING);
+        Log.d(LOG_TAG, "sleep for " + sleep + "ms, " + dutyCycle.getStats());
+        timer.schedule(sleep);
+    }
+
+    private void setState(int next) {
+        if (state != next) {
+            Log.d(LOG_TAG, NAMES[state] + " to " + NAMES[next]);
+        }
+        state = next;
+    }
+}
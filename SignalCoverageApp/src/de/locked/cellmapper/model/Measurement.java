@@ -0,0 +1,113 @@
+package de.locked.cellmapper.model;
+
+/**
+ * One recorded row: a location fix together with the signal and device data
+ * that was valid at that time.
+ */
+public class Measurement {
+    /**
+     * the columns of a row in the order used by the exports
+     */
+    public static final String[] COLUMNS = {"time", "accuracy", "altitude", "satellites", "latitude",
+            "longitude", "speed", "signalStrength", "carrier", "androidRelease", "manufacturer", "model",
+            "device", "osVersion", "signalDelta", "satellitesInView", "meanSnr", "minSnr", "source",
+            "gsmBitErrorRate", "cdmaDbm", "cdmaEcio", "evdoDbm", "evdoEcio", "evdoSnr", "lteRsrp", "lteRsrq",
+            "lteRssnr"};
+
+    // location
+    public long time; // milliseconds since epoch
+    public double accuracy;
+    public double altitude;
+    public int satellites; // used in the fix
+    public int satelliteSummary; // see SatelliteSummary
+    public double latitude;
+    public double longitude;
+    public double speed;
+    public int source; // see DataListener#SOURCE_ACTIVE
+    // signal
+    public int signalStrength;
+    // time of the signal minus time of the fix in ms
+    public int signalDelta;
+    // all values of the signal, see SignalCodec
+    public long signal;
+    // neighboring cells, only set if changed since the previous row
+    Neighbors neighbors;
+    public String carrier;
+    // device
+    public String androidRelease;
+    public String manufacturer;
+    public String model;
+    public String device;
+    public String osVersion;
+
+    /**
+     * @return the time in seconds as used by the exports and the upload
+     *         protocol
+     */
+    public int getTimeSeconds() {
+        return (int) (time / 1000);
+    }
+
+    /**
+     * copy all values of the other row into this one
+     */
+    public void set(Measurement other) {
+        time = other.time;
+        accuracy = other.accuracy;
+        altitude = other.altitude;
+        satellites = other.satellites;
+        satelliteSummary = other.satelliteSummary;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        speed = other.speed;
+        source = other.source;
+        signalStrength = other.signalStrength;
+        signalDelta = other.signalDelta;
+        signal = other.signal;
+        neighbors = other.neighbors;
+        carrier = other.carrier;
+        androidRelease = other.androidRelease;
+        manufacturer = other.manufacturer;
+        model = other.model;
+        device = other.device;
+        osVersion = other.osVersion;
+    }
+
+    /**
+     * Fill the given array with the values in the order of {@link #COLUMNS}
+     *
+     * @param values array of at least COLUMNS.length elements
+     * @return values
+     */
+    public String[] toStrings(String[] values) {
+        values[0] = Long.toString(getTimeSeconds());
+        values[1] = Double.toString(accuracy);
+        values[2] = Double.toString(altitude);
+        values[3] = Integer.toString(satellites);
+        values[4] = Double.toString(latitude);
+        values[5] = Double.toString(longitude);
+        values[6] = Double.toString(speed);
+        values[7] = Integer.toString(signalStrength);
+        values[8] = carrier;
+        values[9] = androidRelease;
+        values[10] = manufacturer;
+        values[11] = model;
+        values[12] = device;
+        values[13] = osVersion;
+        values[14] = Integer.toString(signalDelta);
+        values[15] = Integer.toString(SatelliteSummary.inView(satelliteSummary));
+        values[16] = Integer.toString(SatelliteSummary.meanSnr(satelliteSummary));
+        values[17] = Integer.toString(SatelliteSummary.minSnr(satelliteSummary));
+        values[18] = source >= 0 && source < DataListener.SOURCE_NAMES.length ? DataListener.SOURCE_NAMES[source] : "";
+        values[19] = SignalCodec.toString(SignalCodec.gsmBitErrorRate(signal));
+        values[20] = SignalCodec.toString(SignalCodec.cdmaDbm(signal));
+        values[21] = SignalCodec.toString(SignalCodec.cdmaEcio(signal));
+        values[22] = SignalCodec.toString(SignalCodec.evdoDbm(signal));
+        values[23] = SignalCodec.toString(SignalCodec.evdoEcio(signal));
+        values[24] = SignalCodec.toString(SignalCodec.evdoSnr(signal));
+        values[25] = SignalCodec.toString(SignalCodec.lteRsrp(signal));
+        values[26] = SignalCodec.toString(SignalCodec.lteRsrq(signal));
+        values[27] = SignalCodec.toString(SignalCodec.lteRssnr(signal));
+        return values;
+    }
+}
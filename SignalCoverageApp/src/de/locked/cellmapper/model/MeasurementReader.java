@@ -0,0 +1,222 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Streams the measurements ordered by time. Instead of one cursor over the
+ * whole table, rows are fetched in pages of {@link #PAGE_SIZE} using the time
+ * and rowid of the last seen row as key, so memory usage does not depend on
+ * the table size and rows with the same time are not skipped. Each page is a merge of the partitions that
+ * overlap the requested range, see {@link Partitions}. Archived rows are
+ * decoded block by block and merged with the rows of the partitions.
+ * <p/>
+ * The reader only returns rows up to the youngest row at the time it was
+ * opened, and rows are not moved between the partitions and the archive while
+ * it is open, so all pages belong to the same state of the data. Close it to
+ * let the maintenance go on.
+ * <p/>
+ * The returned {@link Measurement} instances are reused, copy them if you
+ * need to keep them.
+ */
+public class MeasurementReader implements Closeable {
+    private static final String LOG_TAG = MeasurementReader.class.getName();
+    static final int PAGE_SIZE = 500;
+    // all columns in the order expected by read(Cursor, Measurement)
+    static final String COLUMNS = "time, accuracy, altitude, satellites, latitude, longitude, speed, "
+            + "signalStrength, session, signalDelta, satelliteSummary, source, signal";
+    private static final String BLOCK_QUERY = "SELECT fromTime, data FROM " + Archive.TABLE
+            + " WHERE fromTime > ? AND toTime > ? ORDER BY fromTime ASC LIMIT 1";
+
+    private final SQLiteDatabase db;
+    private final Sessions sessions;
+    private final long after;
+    private final long until;
+    private final String query;
+    private final String[] args;
+    // released on close
+    private Semaphore permit;
+    // hot rows
+    private final Measurement hotRow = new Measurement();
+    private Cursor cursor;
+    private long lastSeen;
+    private long lastRowid = Long.MAX_VALUE;
+    private boolean lastPage = false;
+    private boolean hasHotRow = false;
+    // archived rows
+    private final Measurement archivedRow = new Measurement();
+    private ArchiveBlock block;
+    private int blockIndex = 0;
+    private long lastBlock = Long.MIN_VALUE;
+    private boolean lastArchived = false;
+    private boolean hasArchivedRow = false;
+    //
+    private Measurement row;
+
+    /**
+     * @param db the database to read from
+     * @param sessions the session dictionary
+     * @param after only rows with a time greater than this value are read
+     * @param until only rows up to this time are read
+     * @param permit acquired permit of the reader pool, may be null
+     */
+    MeasurementReader(SQLiteDatabase db, Sessions sessions, long after, long until, Semaphore permit) {
+        this.db = db;
+        this.sessions = sessions;
+        this.after = after;
+        this.until = until;
+        this.permit = permit;
+        this.lastSeen = after;
+        List<String> partitions = Partitions.overlapping(db, after, until);
+        // the index on time limits the range, the rowid orders rows of the
+        // same time, column 13
+        this.query = Partitions.union(partitions, COLUMNS + ", rowid",
+                "time >= ? AND (time > ? OR rowid > ?) AND time <= ?") + " ORDER BY time, rowid LIMIT " + PAGE_SIZE;
+        this.args = Partitions.args(partitions, null, null, null, Long.toString(until));
+        this.lastPage = partitions.isEmpty();
+    }
+
+    /**
+     * Move to the next row.
+     *
+     * @return true if there was another row, false if all rows were read
+     */
+    public boolean next() {
+        if (!hasHotRow) {
+            hasHotRow = nextHot();
+        }
+        if (!hasArchivedRow) {
+            hasArchivedRow = nextArchived();
+        }
+
+        if (hasArchivedRow && (!hasHotRow || archivedRow.time <= hotRow.time)) {
+            row = archivedRow;
+            hasArchivedRow = false;
+            return true;
+        }
+        if (hasHotRow) {
+            row = hotRow;
+            hasHotRow = false;
+            return true;
+        }
+        row = null;
+        return false;
+    }
+
+    private boolean nextHot() {
+        while (true) {
+            if (cursor != null && cursor.moveToNext()) {
+                read(cursor, hotRow, sessions);
+                lastSeen = hotRow.time;
+                lastRowid = cursor.getLong(13);
+                return true;
+            }
+            if (cursor != null) {
+                lastPage = cursor.getCount() < PAGE_SIZE;
+                cursor.close();
+                cursor = null;
+            }
+            if (lastPage) {
+                return false;
+            }
+            String key = Long.toString(lastSeen);
+            String rowid = Long.toString(lastRowid);
+            for (int i = 0; i < args.length; i += 4) {
+                args[i] = key;
+                args[i + 1] = key;
+                args[i + 2] = rowid;
+            }
+            cursor = db.rawQuery(query, args);
+        }
+    }
+
+    private boolean nextArchived() {
+        while (true) {
+            if (block != null && blockIndex < block.count) {
+                block.get(blockIndex++, archivedRow, sessions);
+                if (archivedRow.time > until) {
+                    lastArchived = true;
+                    block = null;
+                    return false;
+                }
+                if (archivedRow.time > after) {
+                    return true;
+                }
+                continue;
+            }
+            if (lastArchived) {
+                return false;
+            }
+            loadBlock();
+        }
+    }
+
+    private void loadBlock() {
+        Cursor c = db.rawQuery(BLOCK_QUERY, new String[]{Long.toString(lastBlock), Long.toString(after)});
+        try {
+            if (!c.moveToFirst()) {
+                lastArchived = true;
+                return;
+            }
+            lastBlock = c.getLong(0);
+            if (block == null) {
+                block = new ArchiveBlock();
+            }
+            blockIndex = 0;
+            block.decode(c.getBlob(1));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "skipping broken archive block " + lastBlock, e);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the current row
+     */
+    public Measurement get() {
+        return row;
+    }
+
+    /**
+     * read the current row of a cursor that selected {@link #COLUMNS}
+     */
+    static void read(Cursor c, Measurement row, Sessions sessions) {
+        row.time = c.getLong(0);
+        row.accuracy = c.getDouble(1);
+        row.altitude = c.getDouble(2);
+        row.satellites = c.getInt(3);
+        row.latitude = c.getDouble(4);
+        row.longitude = c.getDouble(5);
+        row.speed = c.getDouble(6);
+        row.signalStrength = c.getInt(7);
+        sessions.fill(c.getInt(8), row);
+        row.signalDelta = c.getInt(9);
+        row.satelliteSummary = c.getInt(10);
+        row.source = c.getInt(11);
+        row.signal = c.getLong(12);
+    }
+
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        lastPage = true;
+        lastArchived = true;
+        block = null;
+        hasHotRow = false;
+        hasArchivedRow = false;
+        if (permit != null) {
+            permit.release();
+            permit = null;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package de.locked.cellmapper.model;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Write-behind queue for measurements. Rows are collected in memory and
+ * written by a dedicated thread in a single transaction as soon as either
+ * {@link #FLUSH_SIZE} rows are queued or the oldest row is older than
+ * {@link #FLUSH_AGE}. If the transaction fails, the rows are written again one
+ * by one, so a bad row only costs itself.
+ * <p/>
+ * The thread is the only one that writes to the db. Other tasks that modify
+ * the data are posted to it as well, see {@link #post(Runnable)}.
+ * <p/>
+ * Rows are only appended, the partitions have a key of their own, so fixes
+ * with the same time, e.g. of different providers, are all kept.
+ */
+class MeasurementWriter {
+    private static final String LOG_TAG = MeasurementWriter.class.getName();
+    private static final int FLUSH = 0;
+    // flush if this many rows are queued
+    static final int FLUSH_SIZE = 50;
+    // flush if the oldest queued row is this old
+    static final long FLUSH_AGE = 10000; // ms
+    private static HandlerThread thread;
+
+    private final DbHandler dbHandler;
+    private final Sessions sessions;
+    private final Partitions partitions;
+    private final Handler handler;
+    private List<Measurement> queue = new ArrayList<Measurement>(FLUSH_SIZE);
+    // the insert statements are compiled once per database connection and
+    // partition
+    private SQLiteDatabase statementDb;
+    private int statementGeneration;
+    private final Map<String, SQLiteStatement> inserts = new HashMap<String, SQLiteStatement>();
+
+    MeasurementWriter(DbHandler dbHandler, Sessions sessions, Partitions partitions) {
+        this.dbHandler = dbHandler;
+        this.sessions = sessions;
+        this.partitions = partitions;
+        this.handler = new Handler(getThread().getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == FLUSH) {
+                    write();
+                }
+            }
+        };
+    }
+
+    /**
+     * all writers share one thread, so reopening the db does not leak threads
+     */
+    private static synchronized HandlerThread getThread() {
+        if (thread == null) {
+            thread = new HandlerThread(LOG_TAG);
+            thread.start();
+        }
+        return thread;
+    }
+
+    void enqueue(Measurement m) {
+        synchronized (handler) {
+            queue.add(m);
+            if (queue.size() == 1) {
+                handler.sendEmptyMessageDelayed(FLUSH, FLUSH_AGE);
+            }
+            if (queue.size() >= FLUSH_SIZE) {
+                handler.removeMessages(FLUSH);
+                handler.sendEmptyMessage(FLUSH);
+            }
+        }
+    }
+
+    /**
+     * run the task on the writer thread, after the rows queued so far
+     */
+    void post(Runnable task) {
+        handler.post(task);
+    }
+
+    /**
+     * run the task on the writer thread after the given delay
+     */
+    void postDelayed(Runnable task, long delay) {
+        handler.postDelayed(task, delay);
+    }
+
+    /**
+     * Writes all queued rows. Can be called from any thread, the call blocks
+     * until the rows are written by the writer thread.
+     */
+    void flush() {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    /**
+     * write all queued rows as soon as possible, without waiting for them
+     */
+    void flushLater() {
+        synchronized (handler) {
+            handler.removeMessages(FLUSH);
+            handler.sendEmptyMessage(FLUSH);
+        }
+    }
+
+    private void write() {
+        List<Measurement> batch;
+        synchronized (handler) {
+            handler.removeMessages(FLUSH);
+            if (queue.isEmpty()) {
+                return;
+            }
+            batch = queue;
+            queue = new ArrayList<Measurement>(FLUSH_SIZE);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = dbHandler.getWritableDatabase();
+        if (!insert(db, batch)) {
+            int lost = 0;
+            for (Measurement m : batch) {
+                if (!insert(db, Collections.singletonList(m))) {
+                    lost++;
+                }
+            }
+            Log.w(LOG_TAG, "wrote " + batch.size() + " rows one by one, " + lost + " failed");
+        }
+        dbHandler.invalidateStats();
+        SQLiteDatabase.releaseMemory();
+
+        long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, "flushed " + batch.size() + " rows in " + duration + "ms ("
+                + (batch.size() * 1000 / duration) + " rows/s)");
+    }
+
+    /**
+     * insert the rows in one transaction
+     *
+     * @return false if the transaction failed and was rolled back
+     */
+    private boolean insert(SQLiteDatabase db, List<Measurement> rows) {
+        db.beginTransaction();
+        try {
+            for (Measurement m : rows) {
+                SQLiteStatement statement = getInsertStatement(db, partitions.tableFor(db, m.time));
+                bind(statement, m, sessions.idFor(db, m));
+                long id = statement.executeInsert();
+                if (m.neighbors != null) {
+                    m.neighbors.insert(getNeighborsStatement(db), m.time, id);
+                }
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            sessions.reset();
+            // partitions created by this transaction are gone
+            partitions.reset();
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * flushes the queue and releases the compiled statement
+     */
+    void close() {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                write();
+                closeStatements();
+            }
+        });
+    }
+
+    /**
+     * run the task on the writer thread and wait for it
+     */
+    private void runAndWait(final Runnable task) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            task.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SQLiteStatement getInsertStatement(SQLiteDatabase db, String table) {
+        checkStatements(db);
+        SQLiteStatement insert = inserts.get(table);
+        if (insert == null) {
+            insert = db.compileStatement("INSERT INTO " + table + " (" + //
+                    "time, accuracy, altitude, satellites, latitude, longitude, speed, " + //
+                    "signalStrength, session, tile, signalDelta, satelliteSummary, source, signal" + //
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            inserts.put(table, insert);
+        }
+        return insert;
+    }
+
+    private SQLiteStatement getNeighborsStatement(SQLiteDatabase db) {
+        checkStatements(db);
+        SQLiteStatement insert = inserts.get(Neighbors.TABLE);
+        if (insert == null) {
+            insert = Neighbors.compileInsert(db);
+            inserts.put(Neighbors.TABLE, insert);
+        }
+        return insert;
+    }
+
+    private void checkStatements(SQLiteDatabase db) {
+        if (statementDb != db || statementGeneration != partitions.getGeneration()) {
+            closeStatements();
+            statementDb = db;
+            statementGeneration = partitions.getGeneration();
+        }
+    }
+
+    private void closeStatements() {
+        for (SQLiteStatement insert : inserts.values()) {
+            insert.close();
+        }
+        inserts.clear();
+        statementDb = null;
+    }
+
+    private void bind(SQLiteStatement s, Measurement m, int session) {
+        s.bindLong(1, m.time);
+        s.bindDouble(2, m.accuracy);
+        s.bindDouble(3, m.altitude);
+        s.bindLong(4, m.satellites);
+        s.bindDouble(5, m.latitude);
+        s.bindDouble(6, m.longitude);
+        s.bindDouble(7, m.speed);
+        s.bindLong(8, m.signalStrength);
+        s.bindLong(9, session);
+        s.bindLong(10, GeoGrid.tile(m.latitude, m.longitude));
+        s.bindLong(11, m.signalDelta);
+        s.bindLong(12, m.satelliteSummary);
+        s.bindLong(13, m.source);
+        s.bindLong(14, m.signal);
+    }
+}
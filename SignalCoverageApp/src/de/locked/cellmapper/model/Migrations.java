@@ -0,0 +1,153 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Chunked table rebuilds. Instead of copying a whole table inside
+ * onUpgrade, the old table is renamed, the new table is created empty and a
+ * migration is registered. {@link #step(SQLiteDatabase)} then moves one chunk
+ * of rows per transaction and removes them from the old table. The
+ * checkpoint is stored in the migration table within the same transaction, so
+ * a killed process simply continues with the next chunk and the file never
+ * needs room for two full copies.
+ * <p/>
+ * Migrations run one after the other in the order they were registered. A
+ * rebuild of a table whose earlier migration is still pending is queued
+ * behind it, both move their rows into the table with the given name.
+ */
+class Migrations {
+    private static final String LOG_TAG = Migrations.class.getName();
+    static final String TABLE = "Migration";
+    // rows moved per transaction
+    static final int CHUNK = 2000;
+
+    private Migrations() {
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                " id INTEGER PRIMARY KEY, " + //
+                " source TEXT, " + //
+                " target TEXT, " + //
+                // target columns and the matching expressions on the source (alias d)
+                " columns TEXT, " + //
+                " selection TEXT, " + //
+                // optional statement run before each chunk, ? is the last key of the chunk
+                " prepare TEXT, " + //
+                " moved INT, " + //
+                " total INT " + //
+                " );");
+    }
+
+    /**
+     * @return the name of the old table for the next migration of the table:
+     *         table_old, or table_oldN if a migration is still pending
+     */
+    static String source(SQLiteDatabase db, String table) {
+        create(db);
+        Cursor cursor = db.rawQuery("SELECT COUNT(*), MAX(id) FROM " + TABLE, null);
+        try {
+            // the old table of a pending migration keeps its name
+            cursor.moveToFirst();
+            return cursor.getInt(0) == 0 ? table + "_old" : table + "_old" + (cursor.getLong(1) + 1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Rename the table to the given source, see
+     * {@link #source(SQLiteDatabase, String)}, and register a migration of its
+     * rows into a new table with the old name, which must be created by the
+     * caller afterwards. Rows are moved in the order of their time column.
+     * Runs within the upgrade, so it does not move any rows itself.
+     *
+     * @param columns the columns of the new table
+     * @param selection expressions for the columns, the old table has the
+     *            alias d
+     * @param prepare optional statement executed before each chunk, may use ?
+     *            for the last time of the chunk
+     */
+    static void register(SQLiteDatabase db, String table, String source, String columns, String selection,
+                         String prepare) {
+        create(db);
+        Log.i(LOG_TAG, "register migration of " + source + " into " + table);
+        db.execSQL("ALTER TABLE " + table + " RENAME TO " + source);
+
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + source, null);
+        int total = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+
+        db.execSQL("INSERT INTO " + TABLE + " (source, target, columns, selection, prepare, moved, total) "
+                + "VALUES (?, ?, ?, ?, ?, 0, ?)", new Object[]{source, table, columns, selection, prepare, total});
+    }
+
+    static boolean hasPending(SQLiteDatabase db) {
+        create(db);
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
+        boolean pending = cursor.moveToFirst() && cursor.getInt(0) > 0;
+        cursor.close();
+        return pending;
+    }
+
+    /**
+     * Move the next chunk of the oldest pending migration in one transaction.
+     *
+     * @return the progress in percent of the current migration, -1 if there
+     *         is nothing left to do
+     */
+    static int step(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT id, source, target, columns, selection, prepare, moved, total FROM "
+                + TABLE + " ORDER BY id LIMIT 1", null);
+        if (!cursor.moveToFirst()) {
+            cursor.close();
+            return -1;
+        }
+        long id = cursor.getLong(0);
+        String source = cursor.getString(1);
+        String target = cursor.getString(2);
+        String columns = cursor.getString(3);
+        String selection = cursor.getString(4);
+        String prepare = cursor.getString(5);
+        int moved = cursor.getInt(6);
+        int total = cursor.getInt(7);
+        cursor.close();
+
+        db.beginTransaction();
+        try {
+            cursor = db.rawQuery("SELECT MAX(time) FROM (SELECT time FROM " + source
+                    + " WHERE time IS NOT NULL ORDER BY time LIMIT " + CHUNK + ")", null);
+            boolean done = !cursor.moveToFirst() || cursor.isNull(0);
+            long last = done ? 0 : cursor.getLong(0);
+            cursor.close();
+
+            int progress;
+            if (done) {
+                Log.i(LOG_TAG, "migration of " + target + " done");
+                db.execSQL("DROP TABLE " + source);
+                db.execSQL("DELETE FROM " + TABLE + " WHERE id = ?", new Object[]{id});
+                progress = 100;
+            } else {
+                Object[] args = {last};
+                if (prepare != null) {
+                    db.execSQL(prepare, args);
+                }
+                // rows written since the migration started win
+                db.execSQL("INSERT OR IGNORE INTO " + target + " (" + columns + ") SELECT " + selection + " FROM "
+                        + source + " d WHERE d.time <= ?", args);
+                db.execSQL("DELETE FROM " + source + " WHERE time <= ?", args);
+
+                moved = Math.min(total, moved + CHUNK);
+                db.execSQL("UPDATE " + TABLE + " SET moved = ? WHERE id = ?", new Object[]{moved, id});
+                progress = total == 0 ? 100 : moved * 100 / total;
+                Log.d(LOG_TAG, "migrating " + target + ": " + moved + "/" + total);
+            }
+            db.setTransactionSuccessful();
+            return progress;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
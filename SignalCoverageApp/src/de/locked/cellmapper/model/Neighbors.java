@@ -0,0 +1,140 @@
+package de.locked.cellmapper.model;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.telephony.NeighboringCellInfo;
+import android.telephony.TelephonyManager;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One report of the neighboring cells. Reports are only stored with a
+ * measurement if they differ from the previous one, so the neighbors of a
+ * row are those of the latest report that is not younger than the row.
+ * <p/>
+ * A report is keyed by the measurement it was stored with, the partition
+ * follows from the time (see {@link Partitions}) and the id of the row in it
+ * is the measurement column. Fixes of different providers can have the same
+ * time, so the time alone does not tell which row the report belongs to.
+ * Reports stored before the key was added have no measurement.
+ * <p/>
+ * Reports are immutable and can be shared between threads.
+ */
+public class Neighbors {
+    static final String TABLE = "Neighbors";
+    static final Neighbors EMPTY = new Neighbors(0);
+
+    private final int[] cid;
+    private final int[] lac;
+    private final int[] psc;
+    private final int[] rssi;
+    private final int[] networkType;
+
+    private Neighbors(int size) {
+        cid = new int[size];
+        lac = new int[size];
+        psc = new int[size];
+        rssi = new int[size];
+        networkType = new int[size];
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                // time of the measurement
+                " time INT, " + //
+                // id of the measurement in its partition
+                " measurement INT, " + //
+                // an empty report is stored as one row with an unknown cid
+                " cid INT, " + //
+                " lac INT, " + //
+                " psc INT, " + //
+                // ASU, see NeighboringCellInfo#getRssi()
+                " rssi INT, " + //
+                " networkType INT " + //
+                " );");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_time ON " + TABLE + "(time)");
+    }
+
+    /**
+     * add the key of the measurement to a table of version 17 or older
+     */
+    static void addMeasurement(SQLiteDatabase db) {
+        if (!Partitions.hasColumn(db, TABLE, "measurement")) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN measurement INT");
+        }
+    }
+
+    /**
+     * @param cells the cells as reported by the telephony manager, may be null
+     */
+    static Neighbors of(List<NeighboringCellInfo> cells) {
+        if (cells == null || cells.isEmpty()) {
+            return EMPTY;
+        }
+        Neighbors n = new Neighbors(cells.size());
+        for (int i = 0; i < cells.size(); i++) {
+            NeighboringCellInfo cell = cells.get(i);
+            n.cid[i] = cell.getCid();
+            n.lac[i] = cell.getLac();
+            n.psc[i] = cell.getPsc();
+            n.rssi[i] = cell.getRssi();
+            n.networkType[i] = cell.getNetworkType();
+        }
+        return n;
+    }
+
+    int size() {
+        return cid.length;
+    }
+
+    /**
+     * @return true if both reports contain the same cells with the same values
+     */
+    boolean sameAs(Neighbors other) {
+        return other != null && Arrays.equals(cid, other.cid) && Arrays.equals(lac, other.lac)
+                && Arrays.equals(psc, other.psc) && Arrays.equals(rssi, other.rssi)
+                && Arrays.equals(networkType, other.networkType);
+    }
+
+    /**
+     * @return the statement that inserts one cell, see
+     *         {@link #insert(SQLiteStatement, long, long)}
+     */
+    static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE
+                + " (time, measurement, cid, lac, psc, rssi, networkType) VALUES (?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    /**
+     * insert the cells of the report, must be called within the write
+     * transaction of the measurement
+     *
+     * @param time time of the measurement
+     * @param measurement row id of the measurement in its partition
+     */
+    void insert(SQLiteStatement s, long time, long measurement) {
+        if (size() == 0) {
+            bind(s, time, measurement, NeighboringCellInfo.UNKNOWN_CID, NeighboringCellInfo.UNKNOWN_CID,
+                    NeighboringCellInfo.UNKNOWN_CID, NeighboringCellInfo.UNKNOWN_RSSI,
+                    TelephonyManager.NETWORK_TYPE_UNKNOWN);
+            s.executeInsert();
+            return;
+        }
+        for (int i = 0; i < size(); i++) {
+            bind(s, time, measurement, cid[i], lac[i], psc[i], rssi[i], networkType[i]);
+            s.executeInsert();
+        }
+    }
+
+    private static void bind(SQLiteStatement s, long time, long measurement, int cid, int lac, int psc, int rssi,
+                             int networkType) {
+        s.bindLong(1, time);
+        s.bindLong(2, measurement);
+        s.bindLong(3, cid);
+        s.bindLong(4, lac);
+        s.bindLong(5, psc);
+        s.bindLong(6, rssi);
+        s.bindLong(7, networkType);
+    }
+}
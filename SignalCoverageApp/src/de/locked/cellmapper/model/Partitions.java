@@ -0,0 +1,289 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Monthly partitions of the data. Rows are written into one table per month
+ * (UTC), named like Measurements_201310, so inserts only touch the small
+ * B-tree of the current month and old months are dropped as a whole. The data
+ * table of older versions ({@link DbHandler#TABLE}) and the partitions named
+ * like Base_201310, which used the time as key, are kept as more partitions.
+ * <p/>
+ * The key of a row is a rowid of its own, several rows may have the same
+ * time, e.g. fixes of different providers. Readers order rows by time and
+ * rowid. This costs what the time as rowid saved: the partitions carry a
+ * second B-tree for the time index, and scans in time order look up every
+ * row by its rowid. Only the tables with the time as rowid scan the table
+ * B-tree directly.
+ * <p/>
+ * The catalog holds the row count and time range of every partition and is
+ * maintained by triggers, so queries only read the partitions that overlap
+ * the requested time range. Use {@link #union(List, String, String)} to query
+ * several partitions at once.
+ */
+class Partitions {
+    private static final String LOG_TAG = Partitions.class.getName();
+    static final String TABLE = "Partitions";
+    // prefix of the monthly partitions
+    static final String PREFIX = "Measurements_";
+
+    // partitions that are known to exist, only used by the writer thread
+    private final Set<String> known = new HashSet<String>();
+    // changes whenever a partition was dropped
+    private int generation = 0;
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                " name TEXT PRIMARY KEY, " + //
+                " rows INT, " + //
+                // min and max time, only valid if rows > 0
+                " minTime INT, " + //
+                " maxTime INT " + //
+                " );");
+    }
+
+    /**
+     * create a partition with the current layout of the data table
+     */
+    static void createTable(SQLiteDatabase db, String name) {
+        Log.i(LOG_TAG, "create partition " + name);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + name + "(" + //
+                // location
+                // alias of the rowid, unique even if rows have the same time
+                " id INTEGER PRIMARY KEY, " + //
+                // ms since epoch
+                " time INT, " + //
+                " accuracy REAL, " + //
+                " altitude REAL, " + //
+                " satellites INT, " + //
+                " latitude REAL, " + //
+                " longitude REAL," + //
+                " speed REAL, " + //
+                // signal
+                " signalStrength INT, " + //
+                // carrier and device, see Sessions
+                " session INT, " + //
+                // spatial index, see GeoGrid
+                " tile INT, " + //
+                // time of the signal minus time of the fix in ms
+                " signalDelta INT, " + //
+                // satellites in view and SNR, see SatelliteSummary
+                " satelliteSummary INT, " + //
+                // see DataListener#SOURCE_ACTIVE
+                " source INT, " + //
+                // all values of the signal, see SignalCodec
+                " signal INT " + //
+                " );");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + name + "_time ON " + name + "(time)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + name + "_tile ON " + name + "(tile)");
+        register(db, name);
+    }
+
+    /**
+     * add the table to the catalog, initialized from its current content, and
+     * create the triggers that keep the catalog up to date
+     */
+    static void register(SQLiteDatabase db, String name) {
+        create(db);
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE + " SELECT ?, COUNT(*), MIN(time), MAX(time) FROM " + name,
+                new Object[]{name});
+
+        String where = " WHERE name = '" + name + "'; END";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + name + "_rows_insert AFTER INSERT ON " + name + //
+                " BEGIN UPDATE " + TABLE + " SET " + //
+                " rows = rows + 1, " + //
+                " minTime = CASE WHEN minTime IS NULL OR NEW.time < minTime THEN NEW.time ELSE minTime END, " + //
+                " maxTime = CASE WHEN maxTime IS NULL OR NEW.time > maxTime THEN NEW.time ELSE maxTime END " + //
+                where);
+        // min and max are lookups in the time index
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + name + "_rows_delete AFTER DELETE ON " + name + //
+                " BEGIN UPDATE " + TABLE + " SET " + //
+                " rows = rows - 1, " + //
+                " minTime = (SELECT MIN(time) FROM " + name + "), " + //
+                " maxTime = (SELECT MAX(time) FROM " + name + ") " + //
+                where);
+    }
+
+    /**
+     * add the column to all partitions that don't have it yet, tables created
+     * during the upgrade already have the current layout
+     */
+    static void addColumn(SQLiteDatabase db, String column, String type) {
+        Log.d(LOG_TAG, "add column " + column);
+        List<String> names = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM " + TABLE, null);
+        while (cursor.moveToNext()) {
+            names.add(cursor.getString(0));
+        }
+        cursor.close();
+
+        for (String name : names) {
+            if (!hasColumn(db, name, column)) {
+                db.execSQL("ALTER TABLE " + name + " ADD COLUMN " + column + " " + type);
+            }
+        }
+    }
+
+    static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            // columns: cid, name, type, ...
+            while (cursor.moveToNext()) {
+                if (column.equalsIgnoreCase(cursor.getString(1))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the name of the partition for the time in ms
+     */
+    static String name(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        int month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+        return PREFIX + month;
+    }
+
+    /**
+     * @return the partition for the time in ms, created if required. Must be
+     *         called by the writer thread within the write transaction.
+     */
+    synchronized String tableFor(SQLiteDatabase db, long time) {
+        String name = name(time);
+        if (known.contains(name)) {
+            return name;
+        }
+
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE name = ?", new String[]{name});
+        boolean exists = cursor.moveToFirst() && cursor.getInt(0) > 0;
+        cursor.close();
+        if (!exists) {
+            createTable(db, name);
+        }
+        known.add(name);
+        return name;
+    }
+
+    /**
+     * Drop the partition and its catalog entry. Must be called by the writer
+     * thread.
+     */
+    synchronized void drop(SQLiteDatabase db, String name) {
+        Log.i(LOG_TAG, "drop partition " + name);
+        db.execSQL("DROP TABLE IF EXISTS " + name);
+        db.execSQL("DELETE FROM " + TABLE + " WHERE name = ?", new Object[]{name});
+        reset();
+    }
+
+    /**
+     * forget the known partitions, e.g. after a rollback
+     */
+    synchronized void reset() {
+        known.clear();
+        generation++;
+    }
+
+    /**
+     * @return a number that changes whenever partitions were dropped, compiled
+     *         statements on partitions must be released then
+     */
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the non-empty partitions with rows in (after, until], oldest
+     *         first
+     */
+    static List<String> overlapping(SQLiteDatabase db, long after, long until) {
+        List<String> names = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM " + TABLE
+                + " WHERE rows > 0 AND maxTime > ? AND minTime <= ? ORDER BY minTime",
+                new String[]{Long.toString(after), Long.toString(until)});
+        while (cursor.moveToNext()) {
+            names.add(cursor.getString(0));
+        }
+        cursor.close();
+        return names;
+    }
+
+    /**
+     * @return all non-empty partitions, oldest first
+     */
+    static List<String> all(SQLiteDatabase db) {
+        return overlapping(db, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return a UNION ALL of the selection on all tables, or a query without
+     *         rows if the list is empty. The columns must be plain names. Use
+     *         {@link #args(List, String...)} for the arguments.
+     */
+    static String union(List<String> tables, String columns, String where) {
+        StringBuilder sb = new StringBuilder(tables.size() * 128);
+        if (tables.isEmpty()) {
+            // same columns, no rows
+            for (String column : columns.split(",")) {
+                sb.append(sb.length() == 0 ? "SELECT " : ", ").append("NULL AS ").append(column.trim());
+            }
+            return sb.append(" WHERE 0").toString();
+        }
+        for (String table : tables) {
+            if (sb.length() > 0) {
+                sb.append(" UNION ALL ");
+            }
+            sb.append("SELECT ").append(columns).append(" FROM ").append(table);
+            if (where != null) {
+                sb.append(" WHERE ").append(where);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the arguments for the union, repeated for every table
+     */
+    static String[] args(List<String> tables, String... args) {
+        String[] result = new String[tables.size() * args.length];
+        for (int i = 0; i < tables.size(); i++) {
+            System.arraycopy(args, 0, result, i * args.length, args.length);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of rows with a time greater than after, only
+     *         partitions containing that time are counted
+     */
+    static int countAfter(SQLiteDatabase db, long after) {
+        int count = 0;
+        Cursor cursor = db.rawQuery("SELECT name, rows, minTime FROM " + TABLE + " WHERE rows > 0 AND maxTime > ?",
+                new String[]{Long.toString(after)});
+        while (cursor.moveToNext()) {
+            if (cursor.getLong(2) > after) {
+                count += cursor.getInt(1);
+                continue;
+            }
+            Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + cursor.getString(0) + " WHERE time > ?",
+                    new String[]{Long.toString(after)});
+            count += c.moveToFirst() ? c.getInt(0) : 0;
+            c.close();
+        }
+        cursor.close();
+        return count;
+    }
+}
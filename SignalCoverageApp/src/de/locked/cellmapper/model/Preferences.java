@@ -15,7 +15,29 @@ public class Preferences {
     public static String password = "password";
     public static String licenseAgreed = "licenseAgreed";
     public static String updateOnSignalChange = "updateOnSignalChange";
+    public static String dutyCyclePolicy = "duty_cycle_policy";
+    public static String triggerMinDelta = "trigger_min_delta";
+    public static String triggerPerHour = "trigger_per_hour";
+    public static String signalMatchTolerance = "signal_match_tolerance";
+    public static String signalMatchInterpolate = "signal_match_interpolate";
+    public static String thinMinDistance = "thin_min_distance";
+    public static String thinMinSignalDelta = "thin_min_signal_delta";
+    public static String thinTolerance = "thin_tolerance";
+    public static String archiveAfterDays = "archive_after_days";
+    public static String retentionDays = "retention_days";
+    public static String retainUntilUploaded = "retain_until_uploaded";
+    public static String retentionMaxMb = "retention_max_mb";
     public static String showWhatsNew = "showWhatsNewV13";
+    // prefix, followed by upload url and user id. Value is a time in ms
+    public static String uploadedUntil = "uploadedUntilMs_";
+
+    /**
+     * @return the key of the time in ms of the youngest row that was
+     *         acknowledged by the upload server for this url and user
+     */
+    public static String uploadedUntilKey(String url, String userId) {
+        return uploadedUntil + url.trim() + "_" + userId;
+    }
 
     public static long getAsLong(SharedPreferences preferences, String key, long def) {
         try {
@@ -41,4 +63,21 @@ public class Preferences {
 
         return def;
     }
+
+    /**
+     * @param def default in seconds
+     * @return a value in seconds that may have a fraction, e.g. "0.1", in ms
+     */
+    public static long getSecondsAsMillis(SharedPreferences preferences, String key, long def) {
+        String valueString = null;
+        try {
+            valueString = preferences.getString(key, Long.toString(def));
+            return Math.round(Double.parseDouble(valueString) * 1000);
+        } catch (ClassCastException e) {
+            return getAsLong(preferences, key, def) * 1000l;
+        } catch (NumberFormatException e) {
+            Log.d(LOG_TAG, "value '" + valueString + "' could not be parsed to seconds: " + key);
+        }
+        return def * 1000l;
+    }
 }
@@ -0,0 +1,209 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes old rows and gives the space back to the file system. Partitions
+ * that only hold old rows are dropped, other rows are deleted in batches of
+ * {@link #BATCH} rows. Each step does one of these in its own transaction and
+ * the caller runs the next step in a new message. The free pages are released
+ * by <code>PRAGMA incremental_vacuum</code> in steps of {@link #VACUUM_PAGES}
+ * pages, so no step blocks the writer thread for long.
+ * Only dbs created with incremental auto vacuum shrink, older ones keep their
+ * free pages for new rows.
+ * <p/>
+ * Archived rows are deleted block by block. The archive only holds rows that
+ * are older than the rows in the partitions, so the oldest rows are always
+ * found there first.
+ */
+class Retention {
+    private static final String LOG_TAG = Retention.class.getName();
+    // rows deleted per transaction
+    static final int BATCH = 500;
+    // pages released per vacuum step
+    static final int VACUUM_PAGES = 128;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private Retention() {
+    }
+
+    /**
+     * Delete the next batch of rows older than the given time. Archive blocks
+     * and partitions are dropped as a whole if all of their rows are older,
+     * one per call, only the partition that contains the time is deleted from
+     * in batches. Reports of the neighboring cells are deleted if a younger
+     * report is old as well.
+     *
+     * @param before time in ms
+     * @return true if there may be more rows to delete
+     */
+    static boolean deleteBeforeStep(SQLiteDatabase db, Partitions partitions, long before) {
+        String[] args = {Long.toString(before)};
+        if (deleteOldestBlock(db, before)) {
+            return true;
+        }
+
+        // the oldest partition with old rows, dropped if it only has old rows
+        Cursor cursor = db.rawQuery("SELECT name, maxTime FROM " + Partitions.TABLE
+                + " WHERE rows > 0 AND minTime < ? ORDER BY minTime LIMIT 1", args);
+        String name = cursor.moveToFirst() ? cursor.getString(0) : null;
+        long maxTime = name == null ? 0 : cursor.getLong(1);
+        cursor.close();
+        if (name != null && maxTime < before) {
+            partitions.drop(db, name);
+            return true;
+        }
+        if (name != null && deleteOldest(db, name, before)) {
+            return true;
+        }
+        dropEmpty(db, partitions);
+
+        // the youngest old report of the neighbors is still valid for the
+        // rows after it
+        cursor = db.rawQuery("SELECT MAX(time) FROM " + Neighbors.TABLE + " WHERE time < ?", args);
+        long neighbors = cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        cursor.close();
+        if (deleteOldest(db, Neighbors.TABLE, neighbors)) {
+            return true;
+        }
+
+        Log.i(LOG_TAG, "deleted all rows older than " + before);
+        return false;
+    }
+
+    /**
+     * Delete the next batch of the oldest rows if the used part of the file is
+     * larger than the given size. Free pages do not count, they are released
+     * by {@link #vacuumStep(SQLiteDatabase)}.
+     *
+     * @return true if rows were deleted and the db may still be too large
+     */
+    static boolean capStep(SQLiteDatabase db, Partitions partitions, long maxBytes) {
+        if (usedBytes(db) <= maxBytes) {
+            return false;
+        }
+        if (!deleteOldestBlock(db, Long.MAX_VALUE)) {
+            List<String> names = Partitions.all(db);
+            if (names.isEmpty() || !deleteOldest(db, names.get(0), Long.MAX_VALUE)) {
+                return false;
+            }
+        }
+        dropEmpty(db, partitions);
+        Log.d(LOG_TAG, "capping db, " + usedBytes(db) + " of " + maxBytes + " bytes used");
+        return true;
+    }
+
+    private static void dropEmpty(SQLiteDatabase db, Partitions partitions) {
+        List<String> empty = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM " + Partitions.TABLE + " WHERE rows = 0", null);
+        while (cursor.moveToNext()) {
+            empty.add(cursor.getString(0));
+        }
+        cursor.close();
+
+        for (String name : empty) {
+            partitions.drop(db, name);
+        }
+    }
+
+    /**
+     * delete the next batch of rows of the table older than the given time
+     *
+     * @return false if there were no rows left to delete
+     */
+    private static boolean deleteOldest(SQLiteDatabase db, String table, long before) {
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.rawQuery("SELECT MAX(time) FROM (SELECT time FROM " + table
+                    + " WHERE time < ? ORDER BY time LIMIT " + BATCH + ")", new String[]{Long.toString(before)});
+            boolean empty = !cursor.moveToFirst() || cursor.isNull(0);
+            long last = empty ? 0 : cursor.getLong(0);
+            cursor.close();
+            if (empty) {
+                return false;
+            }
+
+            db.execSQL("DELETE FROM " + table + " WHERE time <= ?", new Object[]{last});
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * delete the oldest archive block if all of its rows are older than the
+     * given time
+     *
+     * @return false if there was no such block
+     */
+    private static boolean deleteOldestBlock(SQLiteDatabase db, long before) {
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.rawQuery("SELECT MIN(fromTime) FROM " + Archive.TABLE + " WHERE toTime < ?",
+                    new String[]{Long.toString(before)});
+            boolean empty = !cursor.moveToFirst() || cursor.isNull(0);
+            long from = empty ? 0 : cursor.getLong(0);
+            cursor.close();
+            if (empty) {
+                return false;
+            }
+
+            db.execSQL("DELETE FROM " + Archive.TABLE + " WHERE fromTime = ?", new Object[]{from});
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the size of all pages that are in use
+     */
+    static long usedBytes(SQLiteDatabase db) {
+        return (pragma(db, "page_count") - pragma(db, "freelist_count")) * pragma(db, "page_size");
+    }
+
+    /**
+     * Switch the db to incremental auto vacuum. The db is rebuilt by a full
+     * VACUUM for this, so it must only be called while the db is empty, later
+     * on only free pages are released. Must not be called within a
+     * transaction.
+     */
+    static void enableIncrementalVacuum(SQLiteDatabase db) {
+        if (pragma(db, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            return;
+        }
+        Log.i(LOG_TAG, "switching to incremental vacuum");
+        db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        db.execSQL("VACUUM");
+    }
+
+    /**
+     * release up to {@link #VACUUM_PAGES} free pages
+     *
+     * @return true if there are free pages left
+     */
+    static boolean vacuumStep(SQLiteDatabase db) {
+        if (pragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            return false;
+        }
+        // the pages are released while stepping through the result
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+        cursor.getCount();
+        cursor.close();
+        return pragma(db, "freelist_count") > 0;
+    }
+
+    private static long pragma(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery("PRAGMA " + name, null);
+        long value = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return value;
+    }
+}
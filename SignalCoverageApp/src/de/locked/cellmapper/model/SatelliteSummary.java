@@ -0,0 +1,84 @@
+package de.locked.cellmapper.model;
+
+import android.location.GpsSatellite;
+import android.location.GpsStatus;
+
+/**
+ * Summary of the satellites of a GPS status, packed into one int so it can be
+ * published between threads and stored without allocations:
+ * <ul>
+ * <li>bits 0-7: satellites in view</li>
+ * <li>bits 8-15: satellites used in the fix</li>
+ * <li>bits 16-23: mean SNR in dB</li>
+ * <li>bits 24-31: min SNR in dB</li>
+ * </ul>
+ * The SNR is taken over the satellites used in the fix, or over all
+ * satellites in view if none is used. 0 means that no status is known.
+ */
+public class SatelliteSummary {
+    private static final int MAX = 0xFF;
+
+    private SatelliteSummary() {
+    }
+
+    /**
+     * @return the packed summary of the status
+     */
+    static int of(GpsStatus status) {
+        int inView = 0;
+        int inFix = 0;
+        float sumView = 0;
+        float minView = Float.MAX_VALUE;
+        float sumFix = 0;
+        float minFix = Float.MAX_VALUE;
+        for (GpsSatellite sat : status.getSatellites()) {
+            float snr = sat.getSnr();
+            inView++;
+            sumView += snr;
+            minView = Math.min(minView, snr);
+            if (sat.usedInFix()) {
+                inFix++;
+                sumFix += snr;
+                minFix = Math.min(minFix, snr);
+            }
+        }
+        if (inFix > 0) {
+            return pack(inView, inFix, sumFix / inFix, minFix);
+        }
+        if (inView > 0) {
+            return pack(inView, 0, sumView / inView, minView);
+        }
+        return 0;
+    }
+
+    static int pack(int inView, int inFix, float meanSnr, float minSnr) {
+        return clamp(inView) | clamp(inFix) << 8 | clamp(Math.round(meanSnr)) << 16
+                | clamp(Math.round(minSnr)) << 24;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(MAX, value));
+    }
+
+    public static int inView(int summary) {
+        return summary & MAX;
+    }
+
+    public static int inFix(int summary) {
+        return summary >>> 8 & MAX;
+    }
+
+    /**
+     * @return mean SNR in dB
+     */
+    public static int meanSnr(int summary) {
+        return summary >>> 16 & MAX;
+    }
+
+    /**
+     * @return min SNR in dB
+     */
+    public static int minSnr(int summary) {
+        return summary >>> 24 & MAX;
+    }
+}
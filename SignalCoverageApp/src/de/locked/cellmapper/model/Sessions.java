@@ -0,0 +1,146 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Dictionary of the device and carrier values. These values hardly ever change
+ * during a recording session, so the data rows only reference them by id.
+ * Known sessions are cached in memory for reading and writing.
+ */
+class Sessions {
+    private static final String LOG_TAG = Sessions.class.getName();
+    static final String TABLE = "Session";
+    // the dictionary columns, in the order of Measurement.COLUMNS
+    static final String COLUMNS = "carrier, androidRelease, manufacturer, model, device, osVersion";
+    // matches a session, NULL values are equal
+    private static final String MATCH = "carrier IS ? AND androidRelease IS ? AND manufacturer IS ? "
+            + "AND model IS ? AND device IS ? AND osVersion IS ?";
+
+    private final DbHandler dbHandler;
+    private final SparseArray<String[]> byId = new SparseArray<String[]>();
+    // the session used by the last write
+    private String[] lastValues;
+    private int lastId = -1;
+
+    Sessions(DbHandler dbHandler) {
+        this.dbHandler = dbHandler;
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                " id INTEGER PRIMARY KEY, " + //
+                " carrier TEXT, " + //
+                " androidRelease TEXT, " + //
+                " manufacturer TEXT, " + //
+                " model TEXT, " + //
+                " device TEXT, " + //
+                " osVersion TEXT " + //
+                " );");
+    }
+
+    /**
+     * @param alias alias of a table that contains the dictionary columns
+     * @return SQL sub select of the matching session id
+     */
+    static String lookup(String alias) {
+        return "(SELECT s.id FROM " + TABLE + " s WHERE s.carrier IS " + alias + ".carrier " //
+                + "AND s.androidRelease IS " + alias + ".androidRelease " //
+                + "AND s.manufacturer IS " + alias + ".manufacturer AND s.model IS " + alias + ".model " //
+                + "AND s.device IS " + alias + ".device AND s.osVersion IS " + alias + ".osVersion)";
+    }
+
+    /**
+     * @return the id of the session with the values of the measurement, the
+     *         session is created if required. Must be called within the write
+     *         transaction.
+     */
+    synchronized int idFor(SQLiteDatabase db, Measurement m) {
+        String[] values = {m.carrier, m.androidRelease, m.manufacturer, m.model, m.device, m.osVersion};
+        if (lastId >= 0 && equal(values, lastValues)) {
+            return lastId;
+        }
+
+        long id;
+        SQLiteStatement find = db.compileStatement("SELECT id FROM " + TABLE + " WHERE " + MATCH);
+        try {
+            bind(find, values);
+            id = find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // unknown session
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?)");
+            bind(insert, values);
+            id = insert.executeInsert();
+            insert.close();
+            Log.i(LOG_TAG, "new session " + id);
+        } finally {
+            find.close();
+        }
+
+        lastValues = values;
+        lastId = (int) id;
+        return lastId;
+    }
+
+    /**
+     * forget the last written session, must be called if the write
+     * transaction failed
+     */
+    synchronized void reset() {
+        lastValues = null;
+        lastId = -1;
+    }
+
+    private static void bind(SQLiteStatement statement, String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                statement.bindNull(i + 1);
+            } else {
+                statement.bindString(i + 1, values[i]);
+            }
+        }
+    }
+
+    /**
+     * set the session values of the measurement
+     */
+    synchronized void fill(int id, Measurement m) {
+        String[] values = byId.get(id);
+        if (values == null) {
+            values = load(id);
+            byId.put(id, values);
+        }
+        m.carrier = values[0];
+        m.androidRelease = values[1];
+        m.manufacturer = values[2];
+        m.model = values[3];
+        m.device = values[4];
+        m.osVersion = values[5];
+    }
+
+    private String[] load(int id) {
+        String[] values = new String[6];
+        Cursor cursor = dbHandler.getReadableDatabase().rawQuery(
+                "SELECT " + COLUMNS + " FROM " + TABLE + " WHERE id = ?", new String[]{Integer.toString(id)});
+        if (cursor.moveToFirst()) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = cursor.getString(i);
+            }
+        }
+        cursor.close();
+        return values;
+    }
+
+    private static boolean equal(String[] a, String[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == null ? b[i] != null : !a[i].equals(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,191 @@
+package de.locked.cellmapper.model;
+
+/**
+ * Packs all values of a signal sample into one long with fixed bit fields,
+ * lowest bits first:
+ * <table>
+ * <tr><td>GSM signal strength</td><td>6 bits</td><td>0..31 ASU</td></tr>
+ * <tr><td>GSM bit error rate</td><td>4 bits</td><td>0..7</td></tr>
+ * <tr><td>CDMA dBm</td><td>7 bits</td><td>-125..0</td></tr>
+ * <tr><td>CDMA Ec/Io</td><td>8 bits</td><td>-253..0 dB*10</td></tr>
+ * <tr><td>EVDO dBm</td><td>7 bits</td><td>-125..0</td></tr>
+ * <tr><td>EVDO Ec/Io</td><td>8 bits</td><td>-253..0 dB*10</td></tr>
+ * <tr><td>EVDO SNR</td><td>4 bits</td><td>0..8</td></tr>
+ * <tr><td>LTE RSRP</td><td>7 bits</td><td>-140..-44 dBm</td></tr>
+ * <tr><td>LTE RSRQ</td><td>5 bits</td><td>-20..-3 dB</td></tr>
+ * <tr><td>LTE RS-SNR</td><td>6 bits</td><td>-20..30 dB</td></tr>
+ * </table>
+ * Each field holds the value + 1 after mapping it to its range, 0 means that
+ * the radio did not report it. So a GSM only sample fits into two bytes of
+ * the db and the varints of the archive. The CDMA and EVDO values are
+ * clamped to their fields, LTE values outside of the valid ranges are
+ * unknown, older platforms report -1 or {@link #UNKNOWN} for them.
+ */
+public class SignalCodec {
+    // unknown values as reported by the platform
+    public static final int GSM_UNKNOWN = 99;
+    public static final int UNKNOWN = Integer.MAX_VALUE;
+
+    private static final int GSM_SIGNAL = 0;
+    private static final int GSM_BER = 6;
+    private static final int CDMA_DBM = 10;
+    private static final int CDMA_ECIO = 17;
+    private static final int EVDO_DBM = 25;
+    private static final int EVDO_ECIO = 32;
+    private static final int EVDO_SNR = 40;
+    private static final int LTE_RSRP = 44;
+    private static final int LTE_RSRQ = 51;
+    private static final int LTE_RSSNR = 56;
+    private static final int END = 62;
+    // valid LTE values, RS-SNR in 0.1 dB
+    static final int MIN_RSRP = -140;
+    static final int MAX_RSRP = -44;
+    static final int MIN_RSRQ = -20;
+    static final int MAX_RSRQ = -3;
+    static final int MIN_RSSNR = -200;
+    static final int MAX_RSSNR = 300;
+
+    private SignalCodec() {
+    }
+
+    /**
+     * @return the packed values of the sample
+     */
+    static long encode(SignalHistory.Sample s) {
+        long code = 0;
+        // GSM reports 99 if unknown, the default signal -1 as error rate
+        if (s.gsmSignalStrength >= 0 && s.gsmSignalStrength <= 31) {
+            code |= field(s.gsmSignalStrength, GSM_SIGNAL, GSM_BER);
+        }
+        if (s.gsmBitErrorRate >= 0 && s.gsmBitErrorRate <= 7) {
+            code |= field(s.gsmBitErrorRate, GSM_BER, CDMA_DBM);
+        }
+        // CDMA and EVDO report -1 if they are not used
+        if (s.cdmaDbm < -1) {
+            code |= field(-s.cdmaDbm, CDMA_DBM, CDMA_ECIO);
+        }
+        if (s.cdmaEcio < -1) {
+            code |= field(-s.cdmaEcio, CDMA_ECIO, EVDO_DBM);
+        }
+        if (s.evdoDbm < -1) {
+            code |= field(-s.evdoDbm, EVDO_DBM, EVDO_ECIO);
+        }
+        if (s.evdoEcio < -1) {
+            code |= field(-s.evdoEcio, EVDO_ECIO, EVDO_SNR);
+        }
+        if (s.evdoSnr >= 0) {
+            code |= field(s.evdoSnr, EVDO_SNR, LTE_RSRP);
+        }
+        if (s.lteRsrp >= MIN_RSRP && s.lteRsrp <= MAX_RSRP) {
+            code |= field(-44 - s.lteRsrp, LTE_RSRP, LTE_RSRQ);
+        }
+        if (s.lteRsrq >= MIN_RSRQ && s.lteRsrq <= MAX_RSRQ) {
+            code |= field(-s.lteRsrq, LTE_RSRQ, LTE_RSSNR);
+        }
+        // -1 means unknown on older platforms, even if it is a valid RS-SNR
+        if (s.lteRssnr >= MIN_RSSNR && s.lteRssnr <= MAX_RSSNR && s.lteRssnr != -1) {
+            // reported in 0.1 dB
+            code |= field(Math.round(s.lteRssnr / 10f) + 20, LTE_RSSNR, END);
+        }
+        return code;
+    }
+
+    private static long field(int value, int from, int to) {
+        long max = (1L << (to - from)) - 2;
+        return (Math.max(0, Math.min(max, value)) + 1) << from;
+    }
+
+    /**
+     * @return the mapped value of the field, -1 if it is unknown
+     */
+    private static int get(long code, int from, int to) {
+        return (int) ((code >>> from) & ((1L << (to - from)) - 1)) - 1;
+    }
+
+    /**
+     * @return ASU, {@link #GSM_UNKNOWN} if unknown
+     */
+    public static int gsmSignalStrength(long code) {
+        int v = get(code, GSM_SIGNAL, GSM_BER);
+        return v < 0 ? GSM_UNKNOWN : v;
+    }
+
+    /**
+     * @return {@link #GSM_UNKNOWN} if unknown
+     */
+    public static int gsmBitErrorRate(long code) {
+        int v = get(code, GSM_BER, CDMA_DBM);
+        return v < 0 ? GSM_UNKNOWN : v;
+    }
+
+    /**
+     * @return dBm, {@link #UNKNOWN} if unknown
+     */
+    public static int cdmaDbm(long code) {
+        int v = get(code, CDMA_DBM, CDMA_ECIO);
+        return v < 0 ? UNKNOWN : -v;
+    }
+
+    /**
+     * @return dB*10, {@link #UNKNOWN} if unknown
+     */
+    public static int cdmaEcio(long code) {
+        int v = get(code, CDMA_ECIO, EVDO_DBM);
+        return v < 0 ? UNKNOWN : -v;
+    }
+
+    /**
+     * @return dBm, {@link #UNKNOWN} if unknown
+     */
+    public static int evdoDbm(long code) {
+        int v = get(code, EVDO_DBM, EVDO_ECIO);
+        return v < 0 ? UNKNOWN : -v;
+    }
+
+    /**
+     * @return dB*10, {@link #UNKNOWN} if unknown
+     */
+    public static int evdoEcio(long code) {
+        int v = get(code, EVDO_ECIO, EVDO_SNR);
+        return v < 0 ? UNKNOWN : -v;
+    }
+
+    /**
+     * @return 0..8, {@link #UNKNOWN} if unknown
+     */
+    public static int evdoSnr(long code) {
+        int v = get(code, EVDO_SNR, LTE_RSRP);
+        return v < 0 ? UNKNOWN : v;
+    }
+
+    /**
+     * @return dBm, {@link #UNKNOWN} if unknown
+     */
+    public static int lteRsrp(long code) {
+        int v = get(code, LTE_RSRP, LTE_RSRQ);
+        return v < 0 ? UNKNOWN : -44 - v;
+    }
+
+    /**
+     * @return dB, {@link #UNKNOWN} if unknown
+     */
+    public static int lteRsrq(long code) {
+        int v = get(code, LTE_RSRQ, LTE_RSSNR);
+        return v < 0 ? UNKNOWN : -v;
+    }
+
+    /**
+     * @return dB, {@link #UNKNOWN} if unknown
+     */
+    public static int lteRssnr(long code) {
+        int v = get(code, LTE_RSSNR, END);
+        return v < 0 ? UNKNOWN : v - 20;
+    }
+
+    /**
+     * @return the value as string for the exports, empty if unknown
+     */
+    public static String toString(int value) {
+        return value == UNKNOWN || value == GSM_UNKNOWN ? "" : Integer.toString(value);
+    }
+}
@@ -0,0 +1,248 @@
+package de.locked.cellmapper.model;
+
+import android.os.Build;
+import android.telephony.SignalStrength;
+
+/**
+ * Fixed size history of the received signal strengths, oldest first. The
+ * values are decoded into primitive arrays that are used as a ring buffer, so
+ * storing a sample does not allocate and the sample for a time is found by
+ * binary search.
+ * <p/>
+ * The history is thread safe, samples can be added on one thread and looked
+ * up on another one. Lookups copy the values into a {@link Sample} owned by
+ * the caller.
+ * <p/>
+ * The LTE getters are not part of the public API of SignalStrength. From API
+ * 14 to 28 the values are parsed from {@link SignalStrength#toString()},
+ * which lists all fields separated by spaces, see {@link #field(String, int)}.
+ * On other platforms they are {@link SignalCodec#UNKNOWN}. This costs one
+ * string per sample instead of the boxing and exceptions of a reflective
+ * call.
+ */
+class SignalHistory {
+    // format of SignalStrength.toString() on API 14 to 28 (P)
+    static final boolean LTE_IN_STRING = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+            && Build.VERSION.SDK_INT <= 28;
+    static final String PREFIX = "SignalStrength:";
+    // fields after the prefix: gsm, ber, cdma dbm and ecio, evdo dbm, ecio
+    // and snr, lte signal strength, rsrp, rsrq, rssnr, ...
+    static final int FIELD_RSRP = 8;
+    static final int FIELD_RSRQ = 9;
+    static final int FIELD_RSSNR = 10;
+    private final long[] time;
+    private final int[] gsmSignalStrength;
+    private final int[] gsmBitErrorRate;
+    private final int[] cdmaDbm;
+    private final int[] cdmaEcio;
+    private final int[] evdoDbm;
+    private final int[] evdoEcio;
+    private final int[] evdoSnr;
+    private final int[] lteRsrp;
+    private final int[] lteRsrq;
+    private final int[] lteRssnr;
+    // index of the oldest sample and number of samples
+    private int start = 0;
+    private int size = 0;
+    // values of the signal being added
+    private final Sample incoming = new Sample();
+
+    SignalHistory(int capacity) {
+        time = new long[capacity];
+        gsmSignalStrength = new int[capacity];
+        gsmBitErrorRate = new int[capacity];
+        cdmaDbm = new int[capacity];
+        cdmaEcio = new int[capacity];
+        evdoDbm = new int[capacity];
+        evdoEcio = new int[capacity];
+        evdoSnr = new int[capacity];
+        lteRsrp = new int[capacity];
+        lteRsrq = new int[capacity];
+        lteRssnr = new int[capacity];
+    }
+
+    /**
+     * Add the signal, the oldest sample is dropped if the history is full.
+     *
+     * @param now time in ms, samples are kept in the order they were added
+     */
+    synchronized void add(long now, SignalStrength signal) {
+        incoming.gsmSignalStrength = signal.getGsmSignalStrength();
+        incoming.gsmBitErrorRate = signal.getGsmBitErrorRate();
+        incoming.cdmaDbm = signal.getCdmaDbm();
+        incoming.cdmaEcio = signal.getCdmaEcio();
+        incoming.evdoDbm = signal.getEvdoDbm();
+        incoming.evdoEcio = signal.getEvdoEcio();
+        incoming.evdoSnr = signal.getEvdoSnr();
+        if (LTE_IN_STRING) {
+            String text = signal.toString();
+            incoming.lteRsrp = field(text, FIELD_RSRP);
+            incoming.lteRsrq = field(text, FIELD_RSRQ);
+            incoming.lteRssnr = field(text, FIELD_RSSNR);
+        } else {
+            incoming.lteRsrp = SignalCodec.UNKNOWN;
+            incoming.lteRsrq = SignalCodec.UNKNOWN;
+            incoming.lteRssnr = SignalCodec.UNKNOWN;
+        }
+        add(now, incoming);
+    }
+
+    /**
+     * Add the values of the sample, its time is ignored.
+     *
+     * @param now time in ms, samples are kept in the order they were added
+     */
+    synchronized void add(long now, Sample values) {
+        int i;
+        if (size < time.length) {
+            i = index(size++);
+        } else {
+            i = start;
+            start = index(1);
+        }
+        // keep the times sorted if the clock was set back
+        time[i] = size > 1 ? Math.max(now, time[index(size - 2)]) : now;
+        gsmSignalStrength[i] = values.gsmSignalStrength;
+        gsmBitErrorRate[i] = values.gsmBitErrorRate;
+        cdmaDbm[i] = values.cdmaDbm;
+        cdmaEcio[i] = values.cdmaEcio;
+        evdoDbm[i] = values.evdoDbm;
+        evdoEcio[i] = values.evdoEcio;
+        evdoSnr[i] = values.evdoSnr;
+        lteRsrp[i] = values.lteRsrp;
+        lteRsrq[i] = values.lteRsrq;
+        lteRssnr[i] = values.lteRssnr;
+    }
+
+    /**
+     * Parse a field of {@link SignalStrength#toString()} without allocating.
+     *
+     * @param n the field after the prefix, 0 is the GSM signal strength
+     * @return the value, {@link SignalCodec#UNKNOWN} if the text does not
+     *         have the expected format
+     */
+    static int field(String text, int n) {
+        if (!text.startsWith(PREFIX)) {
+            return SignalCodec.UNKNOWN;
+        }
+        int length = text.length();
+        int i = PREFIX.length();
+        for (int field = 0; field <= n; field++) {
+            while (i < length && text.charAt(i) == ' ') {
+                i++;
+            }
+            boolean negative = i < length && text.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+            long value = 0;
+            int digits = 0;
+            for (; i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++) {
+                value = value * 10 + text.charAt(i) - '0';
+                digits++;
+            }
+            if (digits == 0 || digits > 10 || i < length && text.charAt(i) != ' ') {
+                return SignalCodec.UNKNOWN;
+            }
+            if (field == n) {
+                value = negative ? -value : value;
+                return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? SignalCodec.UNKNOWN : (int) value;
+            }
+        }
+        return SignalCodec.UNKNOWN;
+    }
+
+    /**
+     * Find the youngest sample that is older than the given time.
+     *
+     * @param timestamp time in ms, e.g. of a location
+     * @param out receives the values of the sample
+     * @return true if a sample was found
+     */
+    synchronized boolean findBefore(long timestamp, Sample out) {
+        int i = search(timestamp);
+        if (i == 0) {
+            return false;
+        }
+        copy(index(i - 1), out);
+        return true;
+    }
+
+    /**
+     * Find the oldest sample that is not older than the given time.
+     *
+     * @param timestamp time in ms, e.g. of a location
+     * @param out receives the values of the sample
+     * @return true if a sample was found
+     */
+    synchronized boolean findAfter(long timestamp, Sample out) {
+        int i = search(timestamp);
+        if (i == size) {
+            return false;
+        }
+        copy(index(i), out);
+        return true;
+    }
+
+    /**
+     * @return the first position with a time &gt;= timestamp, size if there is
+     *         none
+     */
+    private int search(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (time[index(mid)] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    private int index(int position) {
+        return (start + position) % time.length;
+    }
+
+    private void copy(int i, Sample out) {
+        out.time = time[i];
+        out.gsmSignalStrength = gsmSignalStrength[i];
+        out.gsmBitErrorRate = gsmBitErrorRate[i];
+        out.cdmaDbm = cdmaDbm[i];
+        out.cdmaEcio = cdmaEcio[i];
+        out.evdoDbm = evdoDbm[i];
+        out.evdoEcio = evdoEcio[i];
+        out.evdoSnr = evdoSnr[i];
+        out.lteRsrp = lteRsrp[i];
+        out.lteRsrq = lteRsrq[i];
+        out.lteRssnr = lteRssnr[i];
+    }
+
+    /**
+     * decoded values of one signal sample, reused by the caller
+     */
+    static class Sample {
+        long time;
+        int gsmSignalStrength;
+        int gsmBitErrorRate;
+        int cdmaDbm;
+        int cdmaEcio;
+        int evdoDbm;
+        int evdoEcio;
+        int evdoSnr;
+        int lteRsrp;
+        int lteRsrq;
+        int lteRssnr;
+    }
+}
@@ -0,0 +1,167 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches location fixes with the signal history. Signal callbacks report
+ * changes, so the youngest signal before a fix is valid no matter how old it
+ * is. A signal that was received up to {@link #tolerance} ms after the fix is
+ * used as well if it is nearer, or if there is no older signal at all, e.g.
+ * right after the start. Fixes that might get a better match are held until
+ * such a signal arrives or the tolerance has passed.
+ * <p/>
+ * With interpolation enabled, a fix between two signals within the tolerance
+ * gets the linear interpolation of their GSM signal strength.
+ * <p/>
+ * Not thread safe, all calls must be made from the same thread.
+ */
+class SignalMatcher {
+    private static final String LOG_TAG = SignalMatcher.class.getName();
+    // fixes that are held at most, older ones are matched right away
+    static final int MAX_HELD = 16;
+    // GSM signal strength for unknown values
+    private static final int UNKNOWN = 99;
+
+    /**
+     * receives the matched fixes
+     */
+    interface Callback {
+        /**
+         * @param tag the tag the fix was offered with
+         * @param delta time of the signal minus the time of the fix in ms
+         */
+        void onMatch(Location location, long tag, SignalHistory.Sample signal, long delta);
+    }
+
+    private final SignalHistory signals;
+    private final Callback callback;
+    private final List<Location> held = new ArrayList<Location>(MAX_HELD);
+    private final List<Long> tags = new ArrayList<Long>(MAX_HELD);
+    private final SignalHistory.Sample before = new SignalHistory.Sample();
+    private final SignalHistory.Sample after = new SignalHistory.Sample();
+    private long tolerance;
+    private boolean interpolate;
+    // statistics
+    private int matchedBefore = 0;
+    private int matchedAfter = 0;
+    private int interpolated = 0;
+    private int dropped = 0;
+
+    SignalMatcher(SignalHistory signals, Callback callback) {
+        this.signals = signals;
+        this.callback = callback;
+    }
+
+    /**
+     * @param tolerance maximum time in ms between a fix and a younger signal
+     * @param interpolate interpolate between the signals around a fix
+     */
+    void configure(long tolerance, boolean interpolate) {
+        this.tolerance = Math.max(0, tolerance);
+        this.interpolate = interpolate;
+    }
+
+    long getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Match the fix now or hold it until it can be matched.
+     *
+     * @param tag passed to the callback with the fix
+     * @param now current time in ms
+     * @return see {@link #update(long)}
+     */
+    long offer(Location location, long tag, long now) {
+        if (held.size() == MAX_HELD) {
+            match(held.remove(0), tags.remove(0), now, true);
+        }
+        held.add(location);
+        tags.add(tag);
+        return update(now);
+    }
+
+    /**
+     * Match the held fixes that can be decided now, must be called after a
+     * signal was added and when the returned time has passed.
+     *
+     * @param now current time in ms
+     * @return the time in ms at which the oldest held fix must be decided,
+     *         Long.MAX_VALUE if none is held
+     */
+    long update(long now) {
+        while (!held.isEmpty()) {
+            long deadline = match(held.get(0), tags.get(0), now, false);
+            if (deadline != 0) {
+                return deadline;
+            }
+            held.remove(0);
+            tags.remove(0);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * match all held fixes with the signals known so far
+     */
+    void clear(long now) {
+        while (!held.isEmpty()) {
+            match(held.remove(0), tags.remove(0), now, true);
+        }
+    }
+
+    /**
+     * @param force decide with the signals known so far
+     * @return 0 if the fix was matched or dropped, otherwise the time in ms
+     *         until which a younger signal could still improve the match
+     */
+    private long match(Location location, long tag, long now, boolean force) {
+        long time = location.getTime();
+        boolean hasBefore = signals.findBefore(time, before);
+        boolean hasAfter = signals.findAfter(time, after) && after.time - time <= tolerance;
+
+        if (!hasAfter && !force) {
+            // a younger signal is only better if it is nearer than the older one
+            long wait = tolerance;
+            if (hasBefore && !interpolate) {
+                wait = Math.min(tolerance, time - before.time);
+            }
+            if (now < time + wait) {
+                return time + wait;
+            }
+        }
+
+        if (hasBefore && hasAfter && interpolate && time - before.time <= tolerance
+                && before.gsmSignalStrength != UNKNOWN && after.gsmSignalStrength != UNKNOWN) {
+            SignalHistory.Sample nearer = time - before.time <= after.time - time ? before : after;
+            long delta = nearer.time - time;
+            double f = (double) (time - before.time) / (after.time - before.time);
+            nearer.gsmSignalStrength = (int) Math.round(before.gsmSignalStrength + f
+                    * (after.gsmSignalStrength - before.gsmSignalStrength));
+            interpolated++;
+            callback.onMatch(location, tag, nearer, delta);
+        } else if (hasAfter && (!hasBefore || after.time - time < time - before.time)) {
+            matchedAfter++;
+            callback.onMatch(location, tag, after, after.time - time);
+        } else if (hasBefore) {
+            matchedBefore++;
+            callback.onMatch(location, tag, before, before.time - time);
+        } else {
+            dropped++;
+            Log.d(LOG_TAG, "no signal for location at " + time);
+        }
+        return 0;
+    }
+
+    /**
+     * @return matched before/after/interpolated and dropped fixes
+     */
+    String getStats() {
+        return "before: " + matchedBefore + ", after: " + matchedAfter + ", interpolated: " + interpolated
+                + ", dropped: " + dropped;
+    }
+}
@@ -0,0 +1,114 @@
+package de.locked.cellmapper.model;
+
+/**
+ * Decides which signal changes trigger a location request. Some radios report
+ * the signal several times per second, so a change
+ * <ul>
+ * <li>is ignored if it differs less than {@link #minDelta} ASU from the
+ * reference signal, the signal at the last honored trigger or while the GPS
+ * was on,</li>
+ * <li>is folded into the outstanding request if there is one, the request is
+ * made {@link #DEBOUNCE} ms after the first change so the signal can
+ * settle,</li>
+ * <li>is suppressed if the token bucket is empty. The bucket holds up to
+ * {@link #BURST} tokens and gets one token every {@link #refill} ms.</li>
+ * </ul>
+ * Not thread safe, all calls must be made from the same thread.
+ */
+public class SignalTrigger {
+    // time from the first change to the request
+    public static final long DEBOUNCE = 2000; // ms
+    // max tokens in the bucket
+    static final int BURST = 3;
+
+    private int minDelta = 3;
+    private long refill = 5 * 60 * 1000; // ms
+    private double tokens = BURST;
+    private long refilledAt = -1;
+    private int reference = -1;
+    private boolean pending;
+    // statistics
+    private int honored = 0;
+    private int folded = 0;
+    private int belowDelta = 0;
+    private int limited = 0;
+
+    /**
+     * @param minDelta min change of the signal in ASU
+     * @param perHour max requests per hour on average
+     */
+    public void configure(int minDelta, int perHour) {
+        this.minDelta = Math.max(1, minDelta);
+        this.refill = 3600000L / Math.max(1, perHour);
+    }
+
+    /**
+     * the signal while no trigger is required, e.g. while the GPS is on
+     */
+    public void setReference(int signal) {
+        reference = signal;
+    }
+
+    /**
+     * @param signal GSM signal strength in ASU
+     * @param now time in ms
+     * @return the delay in ms after which the request must be made and
+     *         {@link #fire()} be called, -1 if no new request is required
+     */
+    public long offer(int signal, long now) {
+        refill(now);
+        if (reference < 0) {
+            reference = signal;
+        }
+        if (Math.abs(signal - reference) < minDelta) {
+            belowDelta++;
+            return -1;
+        }
+        if (pending) {
+            folded++;
+            return -1;
+        }
+        if (tokens < 1) {
+            limited++;
+            return -1;
+        }
+        tokens--;
+        pending = true;
+        reference = signal;
+        return DEBOUNCE;
+    }
+
+    /**
+     * the outstanding request is made
+     */
+    public void fire() {
+        if (pending) {
+            pending = false;
+            honored++;
+        }
+    }
+
+    /**
+     * drop the outstanding request, its token is not returned
+     */
+    public void cancel() {
+        pending = false;
+    }
+
+    private void refill(long now) {
+        if (refilledAt < 0 || now < refilledAt) {
+            refilledAt = now;
+            return;
+        }
+        tokens = Math.min(BURST, tokens + (double) (now - refilledAt) / refill);
+        refilledAt = now;
+    }
+
+    /**
+     * @return honored and suppressed triggers
+     */
+    public String getStats() {
+        return "honored: " + honored + ", folded: " + folded + ", below delta: " + belowDelta
+                + ", rate limited: " + limited;
+    }
+}
@@ -19,4 +19,22 @@ public class Strings {
         return s;
     }
 
+    /**
+     * Concatenate the values separated by sep
+     * 
+     * @param values
+     * @param sep
+     * @return
+     */
+    public static String join(String[] values, String sep) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(sep);
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+
 }
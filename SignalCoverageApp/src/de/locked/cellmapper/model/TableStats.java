@@ -0,0 +1,76 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Row statistics of the data. The values are summed up from the partition
+ * catalog, which is maintained by triggers on insert and delete, so reading
+ * them does not depend on the table size.
+ * <p/>
+ * Row count and time range include the archived rows, which are summed up
+ * from the (few) archive blocks.
+ */
+class TableStats {
+    // single row table of older versions, replaced by the partition catalog
+    static final String LEGACY_TABLE = "Stats";
+
+    final int rows;
+    // min and max time, only valid if rows > 0
+    final long minTime;
+    final long maxTime;
+    // partition with the youngest row, null if there is none
+    final String lastTable;
+
+    private TableStats(int rows, long minTime, long maxTime, String lastTable) {
+        this.rows = rows;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        this.lastTable = lastTable;
+    }
+
+    static TableStats load(SQLiteDatabase db) {
+        int rows = 0;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        String lastTable = null;
+
+        Cursor cursor = db.rawQuery("SELECT SUM(rows), MIN(minTime), MAX(maxTime) FROM " + Partitions.TABLE
+                + " WHERE rows > 0", null);
+        if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+            rows = cursor.getInt(0);
+            minTime = cursor.getLong(1);
+            maxTime = cursor.getLong(2);
+        }
+        cursor.close();
+
+        cursor = db.rawQuery("SELECT name FROM " + Partitions.TABLE + " WHERE rows > 0 ORDER BY maxTime DESC LIMIT 1",
+                null);
+        if (cursor.moveToFirst()) {
+            lastTable = cursor.getString(0);
+        }
+        cursor.close();
+
+        cursor = db.rawQuery("SELECT SUM(rows), MIN(fromTime), MAX(toTime) FROM " + Archive.TABLE, null);
+        if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+            rows += cursor.getInt(0);
+            minTime = Math.min(minTime, cursor.getLong(1));
+            maxTime = Math.max(maxTime, cursor.getLong(2));
+        }
+        cursor.close();
+
+        return rows == 0 ? new TableStats(0, 0, 0, null) : new TableStats(rows, minTime, maxTime, lastTable);
+    }
+
+    /**
+     * @return the number of archived rows in blocks that end after the given
+     *         time
+     */
+    static int archivedAfter(SQLiteDatabase db, long after) {
+        Cursor cursor = db.rawQuery("SELECT SUM(rows) FROM " + Archive.TABLE + " WHERE toTime > ?",
+                new String[]{Long.toString(after)});
+        int rows = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+        return rows;
+    }
+}
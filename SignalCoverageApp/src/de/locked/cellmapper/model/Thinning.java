@@ -0,0 +1,195 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drops redundant fixes before they are saved. A fix is kept if
+ * <ul>
+ * <li>its signal differs by at least {@link #minSignalDelta} from the last
+ * kept fix, a held fix before it is kept as well so the change is located
+ * exactly,</li>
+ * <li>it is the first one of a track,</li>
+ * <li>or the track bends: an online Douglas-Peucker (opening window) holds
+ * the fixes since the last kept one as long as all of them are within
+ * {@link #tolerance} meters of the line from the last kept fix to the
+ * youngest one. When a fix breaks the line, the one before it is kept.</li>
+ * </ul>
+ * Fixes within {@link #minDistance} meters of the previous fix are dropped
+ * right away, e.g. while waiting at a traffic light. A fix is kept at least
+ * every {@link #MAX_INTERVAL} ms, so a track is never held back for long.
+ * <p/>
+ * Thinning is off by default: at the 5-10 fixes per second of a drive test a
+ * car moves only 1-3 m between two fixes, so a min distance of a few meters
+ * would drop most of them.
+ * <p/>
+ * Not thread safe, all calls must be made from the same thread.
+ */
+class Thinning {
+    // a fix is kept at least this often
+    static final long MAX_INTERVAL = 60000; // ms
+    // fixes that are held at most
+    static final int MAX_WINDOW = 32;
+    private static final double EARTH_RADIUS = 6371000; // m
+
+    /**
+     * receives the kept fixes in the order of their time
+     */
+    interface Callback {
+        void onKeep(Point point);
+    }
+
+    /**
+     * a matched fix
+     */
+    static class Point {
+        final Location location;
+        // see DataListener#SOURCE_ACTIVE
+        final int source;
+        final int signalStrength;
+        final long signalDelta;
+        // see SatelliteSummary
+        final int satelliteSummary;
+        // all values of the signal, see SignalCodec
+        final long signal;
+
+        Point(Location location, int source, int signalStrength, long signalDelta, int satelliteSummary,
+              long signal) {
+            this.location = location;
+            this.source = source;
+            this.signalStrength = signalStrength;
+            this.signalDelta = signalDelta;
+            this.satelliteSummary = satelliteSummary;
+            this.signal = signal;
+        }
+    }
+
+    private final Callback callback;
+    private final List<Point> window = new ArrayList<Point>(MAX_WINDOW);
+    private Point anchor;
+    private double minDistance;
+    private int minSignalDelta = 1;
+    private double tolerance;
+    // statistics
+    private int kept = 0;
+    private int dropped = 0;
+
+    Thinning(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * @param minDistance fixes nearer to the previous one are dropped, in m
+     * @param minSignalDelta signal changes of at least this many ASU are kept
+     * @param tolerance max deviation from the simplified track in m, 0 keeps
+     *            every fix that is not dropped by the other rules
+     */
+    void configure(double minDistance, int minSignalDelta, double tolerance) {
+        this.minDistance = Math.max(0, minDistance);
+        this.minSignalDelta = Math.max(1, minSignalDelta);
+        this.tolerance = Math.max(0, tolerance);
+    }
+
+    void offer(Point p) {
+        if (anchor == null || p.location.getTime() - anchor.location.getTime() > MAX_INTERVAL) {
+            keepLast();
+            keep(p);
+            return;
+        }
+        if (Math.abs(p.signalStrength - anchor.signalStrength) >= minSignalDelta) {
+            keepLast();
+            keep(p);
+            return;
+        }
+        Point last = window.isEmpty() ? anchor : window.get(window.size() - 1);
+        if (p.location.distanceTo(last.location) < minDistance) {
+            dropped++;
+            return;
+        }
+        if (tolerance == 0) {
+            keep(p);
+            return;
+        }
+
+        if (window.size() == MAX_WINDOW) {
+            keepLast();
+        } else if (!withinTolerance(p)) {
+            keepLast();
+        }
+        window.add(p);
+    }
+
+    /**
+     * keep the youngest held fix, e.g. at the end of a track
+     */
+    void flush() {
+        keepLast();
+    }
+
+    /**
+     * @return true if all held fixes are near the line from the anchor to p
+     */
+    private boolean withinTolerance(Point p) {
+        double lat0 = anchor.location.getLatitude();
+        double lon0 = anchor.location.getLongitude();
+        double cos = Math.cos(Math.toRadians(lat0));
+        // local plane in m with the anchor as origin
+        double px = x(p.location, lon0, cos);
+        double py = y(p.location, lat0);
+        double length = px * px + py * py;
+        for (Point q : window) {
+            double qx = x(q.location, lon0, cos);
+            double qy = y(q.location, lat0);
+            double d;
+            if (length == 0) {
+                d = Math.sqrt(qx * qx + qy * qy);
+            } else {
+                // distance to the segment
+                double t = Math.max(0, Math.min(1, (qx * px + qy * py) / length));
+                double dx = qx - t * px;
+                double dy = qy - t * py;
+                d = Math.sqrt(dx * dx + dy * dy);
+            }
+            if (d > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double x(Location l, double lon0, double cos) {
+        return Math.toRadians(l.getLongitude() - lon0) * cos * EARTH_RADIUS;
+    }
+
+    private static double y(Location l, double lat0) {
+        return Math.toRadians(l.getLatitude() - lat0) * EARTH_RADIUS;
+    }
+
+    /**
+     * keep the youngest held fix and drop the others
+     */
+    private void keepLast() {
+        if (window.isEmpty()) {
+            return;
+        }
+        Point last = window.get(window.size() - 1);
+        dropped += window.size() - 1;
+        window.clear();
+        keep(last);
+    }
+
+    private void keep(Point p) {
+        anchor = p;
+        kept++;
+        callback.onKeep(p);
+    }
+
+    /**
+     * @return kept and dropped fixes
+     */
+    String getStats() {
+        return "kept: " + kept + ", dropped: " + dropped;
+    }
+}
@@ -0,0 +1,118 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+
+import junit.framework.TestCase;
+
+public class DutyCycleTest extends TestCase {
+    private static final long ON_TIME = 30000;
+    private static final long SLEEP = 10000;
+    private static final long INTERVAL = 10000;
+
+    private final DutyCycle dutyCycle = new DutyCycle();
+
+    public void testFixedKeepsTheConfiguredValues() {
+        dutyCycle.configure(DutyCycle.FIXED, ON_TIME, SLEEP, INTERVAL);
+        drive(20, 0);
+        lieStill(0);
+        long now = DutyCycle.STILL_TIME;
+        assertEquals(ON_TIME, dutyCycle.getOnTime(now));
+        assertEquals(SLEEP, dutyCycle.getSleepTime(now));
+        assertEquals(INTERVAL, dutyCycle.getInterval(now));
+    }
+
+    public void testUnknownPolicyIsBalanced() {
+        dutyCycle.configure("turbo", ON_TIME, SLEEP, INTERVAL);
+        assertEquals(DutyCycle.BALANCED, dutyCycle.getPolicy());
+    }
+
+    public void testIntervalFollowsTheSpeed() {
+        dutyCycle.configure(DutyCycle.BALANCED, ON_TIME, SLEEP, INTERVAL);
+        assertEquals(INTERVAL, dutyCycle.getInterval(0));
+        drive(10, 0);
+        assertEquals(2500, dutyCycle.getInterval(0));
+        // never longer than configured
+        dutyCycle.configure(DutyCycle.BALANCED, ON_TIME, SLEEP, 2000);
+        assertEquals(2000, dutyCycle.getInterval(0));
+        // never shorter than the bound
+        drive(50, 0);
+        dutyCycle.configure(DutyCycle.BALANCED, ON_TIME, SLEEP, INTERVAL);
+        assertEquals(DutyCycle.MIN_INTERVAL, dutyCycle.getInterval(0));
+    }
+
+    public void testPolicySwitch() {
+        dutyCycle.configure(DutyCycle.BALANCED, ON_TIME, SLEEP, INTERVAL);
+        dutyCycle.gpsOn(1000);
+        drive(10, 1000);
+        dutyCycle.gpsOff(61000);
+        assertEquals(2500, dutyCycle.getInterval(0));
+        // fast, so the sleep is halved
+        assertEquals(SLEEP / 2, dutyCycle.getSleepTime(0));
+
+        // the observations are kept, the saver samples half as often
+        dutyCycle.configure(DutyCycle.SAVER, ON_TIME, SLEEP, INTERVAL);
+        dutyCycle.gpsOn(61000);
+        drive(10, 61000);
+        dutyCycle.gpsOff(181000);
+        assertEquals(5000, dutyCycle.getInterval(0));
+        assertEquals(SLEEP, dutyCycle.getSleepTime(0));
+
+        dutyCycle.configure(DutyCycle.FIXED, ON_TIME, SLEEP, INTERVAL);
+        assertEquals(INTERVAL, dutyCycle.getInterval(0));
+        assertEquals(SLEEP, dutyCycle.getSleepTime(0));
+
+        assertEquals("balanced: 50 fixes in 1 GPS min (50.0/min); saver: 50 fixes in 2 GPS min (25.0/min); ",
+                dutyCycle.getStats());
+    }
+
+    public void testSleepsLongerWhileStill() {
+        dutyCycle.configure(DutyCycle.BALANCED, ON_TIME, SLEEP, INTERVAL);
+        long now = lieStill(0);
+        assertTrue(dutyCycle.isStationary(now));
+        assertEquals(SLEEP * 6, dutyCycle.getSleepTime(now));
+        assertEquals(ON_TIME, dutyCycle.getOnTime(now));
+        dutyCycle.configure(DutyCycle.SAVER, ON_TIME, SLEEP, 2000);
+        assertEquals(SLEEP * 16, dutyCycle.getSleepTime(now));
+        // long enough for a few fixes
+        assertEquals(10000, dutyCycle.getOnTime(now));
+
+        dutyCycle.onAcceleration(15, now);
+        assertFalse(dutyCycle.isStationary(now));
+        assertEquals(SLEEP, dutyCycle.getSleepTime(now));
+    }
+
+    public void testFrequentSignalChangesShortenTheSleep() {
+        dutyCycle.configure(DutyCycle.BALANCED, ON_TIME, SLEEP, INTERVAL);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            now += 5000;
+            dutyCycle.onSignalChange(now);
+        }
+        assertEquals(SLEEP / 2, dutyCycle.getSleepTime(now));
+        // the rate decays while the signal is stable
+        assertEquals(SLEEP, dutyCycle.getSleepTime(now + 60000));
+    }
+
+    /**
+     * 50 fixes at the speed, one per second
+     */
+    private void drive(float speed, long start) {
+        for (int i = 0; i < 50; i++) {
+            Location location = new Location("gps");
+            location.setTime(start + i * 1000);
+            location.setSpeed(speed);
+            dutyCycle.onLocation(location);
+        }
+    }
+
+    /**
+     * @return the time at which the phone counts as stationary
+     */
+    private long lieStill(long start) {
+        long now = start;
+        for (; now <= start + DutyCycle.STILL_TIME; now += 1000) {
+            dutyCycle.onAcceleration(9.81, now);
+        }
+        return now - 1000;
+    }
+}
@@ -0,0 +1,168 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+
+import junit.framework.TestCase;
+
+public class ListenerCycleTest extends TestCase {
+    private static final long ON_TIME = 30000;
+    private static final long SLEEP = 60000;
+    private static final long INTERVAL = 5000;
+
+    /**
+     * clock, timer and GPS of the cycle, time only passes in {@link #advance}
+     */
+    private static class FakeClock implements ListenerCycle.Timer, ListenerCycle.Gps {
+        ListenerCycle cycle;
+        long now = 1000;
+        // -1 if no timer is pending
+        long due = -1;
+        boolean gpsOn;
+        long gpsInterval;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(long delay) {
+            due = now + delay;
+        }
+
+        @Override
+        public void cancel() {
+            due = -1;
+        }
+
+        @Override
+        public void start(long interval) {
+            gpsOn = true;
+            gpsInterval = interval;
+        }
+
+        @Override
+        public void stop() {
+            gpsOn = false;
+        }
+
+        /**
+         * let the time pass and fire the timer when it is due
+         */
+        void advance(long ms) {
+            long end = now + ms;
+            while (due >= 0 && due <= end) {
+                now = due;
+                due = -1;
+                cycle.onTimer();
+            }
+            now = end;
+        }
+    }
+
+    private final DutyCycle dutyCycle = new DutyCycle();
+    private final FakeClock clock = new FakeClock();
+    private final ListenerCycle cycle = new ListenerCycle(dutyCycle, clock, clock);
+
+    @Override
+    protected void setUp() {
+        dutyCycle.configure(DutyCycle.FIXED, ON_TIME, SLEEP, INTERVAL);
+        clock.cycle = cycle;
+    }
+
+    public void testCycle() {
+        assertEquals(ListenerCycle.IDLE, cycle.getState());
+        cycle.start();
+        assertEquals(ListenerCycle.ACQUIRING, cycle.getState());
+        assertTrue(clock.gpsOn);
+        assertEquals(INTERVAL, clock.gpsInterval);
+
+        clock.advance(3000);
+        cycle.onFix(fix());
+        assertEquals(ListenerCycle.SAMPLING, cycle.getState());
+        // sampled for the on-time from the first fix
+        clock.advance(ON_TIME - 1);
+        assertEquals(ListenerCycle.SAMPLING, cycle.getState());
+        clock.advance(1);
+        assertEquals(ListenerCycle.SLEEPING, cycle.getState());
+        assertFalse(clock.gpsOn);
+
+        clock.advance(SLEEP);
+        assertEquals(ListenerCycle.ACQUIRING, cycle.getState());
+        assertTrue(clock.gpsOn);
+    }
+
+    public void testSleepsIfThereIsNoFix() {
+        cycle.start();
+        clock.advance(ON_TIME);
+        assertEquals(ListenerCycle.SLEEPING, cycle.getState());
+        assertFalse(clock.gpsOn);
+        // a late fix does not switch the GPS on again
+        cycle.onFix(fix());
+        assertEquals(ListenerCycle.SLEEPING, cycle.getState());
+    }
+
+    public void testSignalTriggerEndsTheSleep() {
+        SignalTrigger trigger = new SignalTrigger();
+        trigger.setReference(20);
+        cycle.start();
+        clock.advance(ON_TIME);
+        assertEquals(ListenerCycle.SLEEPING, cycle.getState());
+
+        clock.advance(1000);
+        long delay = trigger.offer(10, clock.now());
+        assertEquals(SignalTrigger.DEBOUNCE, delay);
+        // the signal settles, further changes are part of the request
+        clock.advance(delay / 2);
+        assertEquals(-1, trigger.offer(5, clock.now()));
+        clock.advance(delay / 2);
+        trigger.fire();
+        assertTrue(cycle.wake());
+        assertEquals(ListenerCycle.ACQUIRING, cycle.getState());
+        assertTrue(clock.gpsOn);
+        // the sleep timer was replaced
+        assertEquals(clock.now() + ON_TIME, clock.due);
+        // nothing to wake while the GPS is on
+        assertFalse(cycle.wake());
+    }
+
+    public void testMotionEndsAStillSleep() {
+        dutyCycle.configure(DutyCycle.BALANCED, ON_TIME, SLEEP, INTERVAL);
+        for (long t = 0; t <= DutyCycle.STILL_TIME; t += 1000) {
+            dutyCycle.onAcceleration(9.81, clock.now() + t);
+        }
+        clock.advance(DutyCycle.STILL_TIME);
+        cycle.start();
+        // a few fixes are enough to notice a move
+        assertEquals(clock.now() + 3 * INTERVAL, clock.due);
+        clock.advance(3 * INTERVAL);
+        assertEquals(ListenerCycle.SLEEPING, cycle.getState());
+        // still, so the sleep is longer than configured
+        assertEquals(clock.now() + SLEEP * 6, clock.due);
+
+        cycle.onMotion();
+        assertEquals(ListenerCycle.SLEEPING, cycle.getState());
+        dutyCycle.onAcceleration(15, clock.now());
+        cycle.onMotion();
+        assertEquals(ListenerCycle.ACQUIRING, cycle.getState());
+    }
+
+    public void testStop() {
+        cycle.start();
+        cycle.onFix(fix());
+        clock.advance(10000);
+        cycle.stop();
+        assertEquals(ListenerCycle.IDLE, cycle.getState());
+        assertFalse(clock.gpsOn);
+        assertEquals(-1, clock.due);
+        assertTrue(dutyCycle.getStats().startsWith("fixed: 1 fixes"));
+        cycle.start();
+        assertEquals(ListenerCycle.ACQUIRING, cycle.getState());
+    }
+
+    private Location fix() {
+        Location location = new Location("gps");
+        location.setTime(clock.now());
+        return location;
+    }
+}
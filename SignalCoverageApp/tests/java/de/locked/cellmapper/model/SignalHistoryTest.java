@@ -0,0 +1,122 @@
+package de.locked.cellmapper.model;
+
+import android.util.Log;
+
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+public class SignalHistoryTest extends TestCase {
+    private static final String LOG_TAG = SignalHistoryTest.class.getName();
+    private static final int CAPACITY = 100;
+    // SignalStrength.toString() of a GSM/LTE phone on API 17
+    private static final String LTE = "SignalStrength: 99 0 -120 -160 -120 -1 -1 28 -95 -9 100 2147483647 gsm|lte";
+    // of a GSM phone without LTE on API 16
+    private static final String GSM = "SignalStrength: 14 0 -120 -160 -120 -1 -1 99 2147483647 2147483647 "
+            + "2147483647 2147483647 gsm|lte";
+
+    private final SignalHistory.Sample values = new SignalHistory.Sample();
+    private final SignalHistory.Sample out = new SignalHistory.Sample();
+
+    public void testFindBeforeAndAfter() {
+        SignalHistory history = new SignalHistory(CAPACITY);
+        add(history, 1000, 10);
+        add(history, 2000, 20);
+        add(history, 3000, 30);
+
+        assertTrue(history.findBefore(2500, out));
+        assertEquals(2000, out.time);
+        assertEquals(20, out.gsmSignalStrength);
+        assertTrue(history.findAfter(2500, out));
+        assertEquals(3000, out.time);
+        // the sample at the time itself is not before it
+        assertTrue(history.findBefore(2000, out));
+        assertEquals(1000, out.time);
+        assertTrue(history.findAfter(2000, out));
+        assertEquals(2000, out.time);
+        assertFalse(history.findBefore(1000, out));
+        assertFalse(history.findAfter(3001, out));
+    }
+
+    public void testDropsOldestWhenFull() {
+        SignalHistory history = new SignalHistory(3);
+        for (int i = 1; i <= 5; i++) {
+            add(history, i * 1000, i);
+        }
+        assertEquals(3, history.size());
+        assertFalse(history.findBefore(3000, out));
+        assertTrue(history.findAfter(0, out));
+        assertEquals(3, out.gsmSignalStrength);
+        assertTrue(history.findBefore(Long.MAX_VALUE, out));
+        assertEquals(5, out.gsmSignalStrength);
+    }
+
+    public void testKeepsTimesSortedIfTheClockIsSetBack() {
+        SignalHistory history = new SignalHistory(CAPACITY);
+        add(history, 2000, 1);
+        add(history, 1000, 2);
+        assertTrue(history.findAfter(1500, out));
+        assertEquals(2000, out.time);
+        assertEquals(1, out.gsmSignalStrength);
+    }
+
+    public void testField() {
+        assertEquals(99, SignalHistory.field(LTE, 0));
+        assertEquals(-95, SignalHistory.field(LTE, SignalHistory.FIELD_RSRP));
+        assertEquals(-9, SignalHistory.field(LTE, SignalHistory.FIELD_RSRQ));
+        assertEquals(100, SignalHistory.field(LTE, SignalHistory.FIELD_RSSNR));
+        assertEquals(Integer.MAX_VALUE, SignalHistory.field(GSM, SignalHistory.FIELD_RSRP));
+        assertEquals(SignalCodec.UNKNOWN, SignalHistory.field(LTE, 20));
+        assertEquals(SignalCodec.UNKNOWN, SignalHistory.field("SignalStrength:{mGsm=...}", 0));
+        assertEquals(SignalCodec.UNKNOWN, SignalHistory.field("Signal: 1 2 3", 0));
+    }
+
+    /**
+     * Compares adding and matching with the linked list that was used before
+     * the ring buffer. Not a benchmark with statistics, the times are logged
+     * to spot regressions.
+     */
+    public void testTiming() {
+        int rounds = 20000;
+        SignalHistory history = new SignalHistory(CAPACITY);
+        LinkedList<long[]> list = new LinkedList<long[]>();
+        long sum = 0;
+        long listSum = 0;
+        // warm up both
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 1; i <= rounds; i++) {
+                add(history, i * 100L, i & 31);
+                if (history.findBefore(i * 100L - 250, out)) {
+                    sum += out.gsmSignalStrength;
+                }
+            }
+            long ring = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 1; i <= rounds; i++) {
+                list.addFirst(new long[]{i * 100L, i & 31});
+                while (list.size() > CAPACITY) {
+                    list.removeLast();
+                }
+                for (long[] entry : list) {
+                    if (i * 100L - 250 > entry[0]) {
+                        listSum += entry[1];
+                        break;
+                    }
+                }
+            }
+            long linked = System.nanoTime() - start;
+            Log.i(LOG_TAG, "add and match, pass " + pass + ": ring buffer " + ring / rounds + "ns, linked list "
+                    + linked / rounds + "ns");
+            history.clear();
+            list.clear();
+        }
+        assertEquals(listSum, sum);
+    }
+
+    private void add(SignalHistory history, long time, int gsmSignalStrength) {
+        values.gsmSignalStrength = gsmSignalStrength;
+        history.add(time, values);
+    }
+}
@@ -0,0 +1,85 @@
+package de.locked.cellmapper.model;
+
+import junit.framework.TestCase;
+
+public class SignalTriggerTest extends TestCase {
+    private static final long REFILL = 5 * 60 * 1000; // 12 per hour
+
+    private final SignalTrigger trigger = new SignalTrigger();
+
+    @Override
+    protected void setUp() {
+        trigger.configure(3, 12);
+        trigger.setReference(20);
+    }
+
+    public void testIgnoresSmallChanges() {
+        assertEquals(-1, trigger.offer(22, 0));
+        assertEquals(-1, trigger.offer(18, 0));
+        assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(23, 0));
+    }
+
+    public void testFirstSignalIsTheReference() {
+        SignalTrigger fresh = new SignalTrigger();
+        fresh.configure(3, 12);
+        assertEquals(-1, fresh.offer(5, 0));
+        assertEquals(SignalTrigger.DEBOUNCE, fresh.offer(10, 0));
+    }
+
+    public void testDebounceFoldsChanges() {
+        assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(25, 0));
+        // changes until the request is made belong to it
+        assertEquals(-1, trigger.offer(30, 500));
+        assertEquals(-1, trigger.offer(10, 1500));
+        trigger.fire();
+        // compared with the signal of the honored trigger
+        assertEquals(-1, trigger.offer(26, 2500));
+        assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(29, 2500));
+        assertEquals("honored: 1, folded: 2, below delta: 1, rate limited: 0", trigger.getStats());
+    }
+
+    public void testTokenBucketLimitsBursts() {
+        long now = 0;
+        for (int i = 0; i < SignalTrigger.BURST; i++) {
+            assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(i % 2 == 0 ? 30 : 20, now));
+            now += SignalTrigger.DEBOUNCE;
+            trigger.fire();
+        }
+        assertEquals(-1, trigger.offer(10, now));
+
+        // one token per refill period
+        now += REFILL;
+        assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(10, now));
+        trigger.fire();
+        assertEquals(-1, trigger.offer(20, now));
+        assertEquals("honored: 4, folded: 0, below delta: 0, rate limited: 2", trigger.getStats());
+    }
+
+    public void testBucketHoldsAtMostABurst() {
+        long now = 0;
+        trigger.offer(10, now);
+        now = 100 * REFILL;
+        int signal = 10;
+        int made = 0;
+        while (true) {
+            signal = signal == 10 ? 20 : 10;
+            trigger.fire();
+            if (trigger.offer(signal, now) < 0) {
+                break;
+            }
+            made++;
+        }
+        assertEquals(SignalTrigger.BURST, made);
+    }
+
+    public void testCancelledRequestSpendsItsToken() {
+        assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(30, 0));
+        trigger.cancel();
+        assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(20, 0));
+        trigger.cancel();
+        assertEquals(SignalTrigger.DEBOUNCE, trigger.offer(30, 0));
+        trigger.cancel();
+        assertEquals(-1, trigger.offer(20, 0));
+        assertTrue(trigger.getStats().startsWith("honored: 0"));
+    }
+}